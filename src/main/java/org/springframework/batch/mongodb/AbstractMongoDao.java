@@ -1,12 +1,17 @@
 package org.springframework.batch.mongodb;
 
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import com.mongodb.BasicDBObject;
+import com.mongodb.BasicDBObjectBuilder;
 import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
+import com.mongodb.WriteConcern;
 
 import org.springframework.batch.core.JobInstance;
 import org.springframework.batch.core.JobParameter;
@@ -32,10 +37,12 @@ public abstract class AbstractMongoDao {
     public static final String LAST_UPDATED_KEY = "lastUpdated";
     public static final String STATUS_KEY = "status";
     public static final String SEQUENCES_COLLECTION_NAME = "Sequences";
+    public static final String MIGRATIONS_COLLECTION_NAME = "Migrations";
     public static final String ID_KEY = "_id";
     public static final String NS_KEY = "_ns";
     public static final String DOT_ESCAPE_STRING = "\\{dot\\}";
     public static final String DOT_STRING = "\\.";
+    private static final String DOT_ESCAPE = "{dot}";
     
     // Job Constants    
     public static final String JOB_NAME_KEY = "jobName";
@@ -61,15 +68,118 @@ public abstract class AbstractMongoDao {
     public static final String WRITE_SKIP_COUNT_KEY = "writeSkipCount";
     public static final String PROCESS_SKIP_COUT_KEY = "processSkipCout";
     public static final String ROLLBACK_COUNT_KEY = "rollbackCount";
+
+    /**
+     * Documents per insert message, the maxWriteBatchSize of the server. The
+     * driver only splits inserts by message size.
+     */
+    protected static final int INSERT_BATCH_SIZE = 1000;
+
+    private static final DBObject JOB_PARAMETERS_FIELDS = BasicDBObjectBuilder.start()
+            .add(JOB_INSTANCE_ID_KEY, 1).add(JOB_PARAMETERS_KEY, 1).add(ID_KEY, 0).get();
             
+    /**
+     * Assigns ids to saved entities. Defaults to a {@link MongoSequenceIdGenerator}
+     * reserving one id per round trip.
+     */
+    private volatile IdGenerator idGenerator;
+
     protected abstract DBCollection getCollection();
     
+    /**
+     * Optional, replaces the default one-id-per-round-trip sequence, e.g. by a
+     * {@link MongoSequenceIdGenerator} with a larger block size. 
+     */
+    public void setIdGenerator(IdGenerator idGenerator) {
+    	this.idGenerator = idGenerator;
+    }
+
+    /**
+     * @return the id generator of this DAO, null if none was set or used yet
+     */
+    public IdGenerator getIdGenerator() {
+    	return idGenerator;
+    }
         
-    protected Long getNextId(String name, MongoTemplate mongoTemplate) {    	
-        DBCollection collection = mongoTemplate.getDb().getCollection(SEQUENCES_COLLECTION_NAME);
-        BasicDBObject sequence = new BasicDBObject("name", name);
-        collection.update(sequence, new BasicDBObject("$inc", new BasicDBObject("value", 1L)), true, false);
-        return (Long) collection.findOne(sequence).get("value");
+    protected Long getNextId(String name, MongoTemplate mongoTemplate) {
+        return getIdGenerator(mongoTemplate).getNextId(name);
+    }
+
+    protected List<Long> getNextIds(String name, int count, MongoTemplate mongoTemplate) {
+        return getIdGenerator(mongoTemplate).getNextIds(name, count);
+    }
+
+    private IdGenerator getIdGenerator(MongoTemplate mongoTemplate) {
+    	IdGenerator generator = idGenerator;
+    	if (generator == null) {
+    		generator = new MongoSequenceIdGenerator(mongoTemplate);
+    		idGenerator = generator;
+    	}
+    	return generator;
+    }
+
+    /**
+     * Acknowledged insert of the documents into {@link #getCollection()}, one
+     * round trip per {@link #INSERT_BATCH_SIZE} documents.
+     */
+    protected void insertInBatches(List<DBObject> objects) {
+        for (int from = 0; from < objects.size(); from += INSERT_BATCH_SIZE) {
+            getCollection().insert(objects.subList(from, Math.min(from + INSERT_BATCH_SIZE, objects.size())),
+                    WriteConcern.ACKNOWLEDGED);
+        }
+    }
+
+    /**
+     * @return whether a migration of existing data has been completed on this
+     *         database, see {@link #markMigrated(String, MongoTemplate)}
+     */
+    protected boolean isMigrated(String migration, MongoTemplate mongoTemplate) {
+        return mongoTemplate.getCollection(MIGRATIONS_COLLECTION_NAME)
+                .findOne(new BasicDBObject(ID_KEY, migration)) != null;
+    }
+
+    /**
+     * Records a completed migration of existing data in the
+     * {@link #MIGRATIONS_COLLECTION_NAME} collection, so it is not run again
+     * on later startups. Migrations must be safe to run twice, nodes starting
+     * together may both run them before either marks them.
+     */
+    protected void markMigrated(String migration, MongoTemplate mongoTemplate) {
+        mongoTemplate.getCollection(MIGRATIONS_COLLECTION_NAME).update(
+                new BasicDBObject(ID_KEY, migration),
+                new BasicDBObject("$set", new BasicDBObject(LAST_UPDATED_KEY, new Date())),
+                true, false, WriteConcern.ACKNOWLEDGED);
+    }
+
+    /**
+     * Escapes the dots of a key, which Mongo does not allow in field names.
+     * Keys without dots, the common case, are returned as they are.
+     */
+    protected static String escapeDots(String key) {
+        return replace(key, ".", DOT_ESCAPE);
+    }
+
+    /**
+     * Reverts {@link #escapeDots(String)}.
+     */
+    protected static String unescapeDots(String key) {
+        return replace(key, DOT_ESCAPE, ".");
+    }
+
+    // Literal replacement, String.replace compiles a pattern
+    private static String replace(String key, String target, String replacement) {
+        int index = key.indexOf(target);
+        if (index < 0) {
+            return key;
+        }
+        StringBuilder builder = new StringBuilder(key.length() + 8);
+        int from = 0;
+        do {
+            builder.append(key, from, index).append(replacement);
+            from = index + target.length();
+            index = key.indexOf(target, from);
+        } while (index >= 0);
+        return builder.append(key, from, key.length()).toString();
     }
 
     protected void removeSystemFields(DBObject dbObject) {
@@ -85,12 +195,39 @@ public abstract class AbstractMongoDao {
 		return new BasicDBObject(JOB_EXECUTION_ID_KEY, id);
 	}
     
-    @SuppressWarnings({"unchecked"})
     protected JobParameters getJobParameters(Long jobInstanceId, MongoTemplate mongoTemplate) {
-		 DBObject jobParamObj = mongoTemplate
+		DBObject jobParamObj = mongoTemplate
 				.getCollection(JobInstance.class.getSimpleName())
-				.findOne(new BasicDBObject(jobInstanceIdObj(jobInstanceId)));
+				.findOne(jobInstanceIdObj(jobInstanceId), JOB_PARAMETERS_FIELDS);
+		return mapJobParameters(jobParamObj);
+	}
+
+	/**
+	 * Loads the parameters of several JobInstances with a single $in query.
+	 * 
+	 * @return JobParameters by JobInstance id, missing instances are left out
+	 */
+	protected Map<Long, JobParameters> getJobParameters(Collection<Long> jobInstanceIds, MongoTemplate mongoTemplate) {
+		Map<Long, JobParameters> result = new HashMap<Long, JobParameters>(jobInstanceIds.size());
+		if (jobInstanceIds.isEmpty()) {
+			return result;
+		}
+		DBCursor cursor = mongoTemplate
+				.getCollection(JobInstance.class.getSimpleName())
+				.find(new BasicDBObject(JOB_INSTANCE_ID_KEY, new BasicDBObject("$in", jobInstanceIds)),
+						JOB_PARAMETERS_FIELDS);
+		while (cursor.hasNext()) {
+			DBObject jobParamObj = cursor.next();
+			result.put((Long) jobParamObj.get(JOB_INSTANCE_ID_KEY), mapJobParameters(jobParamObj));
+		}
+		return result;
+	}
 
+	/**
+	 * Maps the parameters of a JobInstance document already at hand.
+	 */
+	@SuppressWarnings({"unchecked"})
+	protected JobParameters mapJobParameters(DBObject jobParamObj) {
 		if (jobParamObj != null && jobParamObj.get(MongoJobInstanceDao.JOB_PARAMETERS_KEY) != null){
 			
 			Map<String, ?> jobParamsMap = (Map<String, ?>) jobParamObj.get(MongoJobInstanceDao.JOB_PARAMETERS_KEY);
@@ -99,8 +236,7 @@ public abstract class AbstractMongoDao {
 					jobParamsMap.size());
 			for (Map.Entry<String, ?> entry : jobParamsMap.entrySet()) {
 				Object param = entry.getValue();
-				String key = entry.getKey().replaceAll(DOT_ESCAPE_STRING,
-						DOT_STRING);
+				String key = unescapeDots(entry.getKey());
 				if (param instanceof String) {
 					map.put(key, new JobParameter((String) param));
 				} else if (param instanceof Long) {
@@ -0,0 +1,25 @@
+package org.springframework.batch.mongodb;
+
+/**
+ * Converts ExecutionContext values BSON has no type for, e.g. BigDecimal or
+ * enums, to a value Mongo can store and back. <br/>
+ * Codecs are registered per type on an {@link ExecutionContextCodecRegistry};
+ * the type name is stored next to the value so that it can be decoded.
+ *
+ * @author vfouzdar
+ */
+public interface ExecutionContextCodec {
+
+	/**
+	 * @return the value to store, of a type the Mongo driver can encode
+	 */
+	Object encode(Object value);
+
+	/**
+	 * @param stored the value read from Mongo
+	 * @param type the type of the value that was encoded
+	 * @return the value to put in the ExecutionContext
+	 */
+	Object decode(Object stored, Class<?> type);
+
+}
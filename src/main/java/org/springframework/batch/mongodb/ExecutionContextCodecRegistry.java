@@ -0,0 +1,199 @@
+package org.springframework.batch.mongodb;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.BeanUtils;
+import org.springframework.util.Assert;
+import org.springframework.util.ClassUtils;
+import org.springframework.util.NumberUtils;
+
+/**
+ * {@link ExecutionContextCodec}s by type, used by {@link MongoExecutionContextDao}
+ * to store values BSON has no type for. <br/>
+ * Registered by default: Short, Byte and Float (stored as numbers),
+ * BigDecimal and BigInteger (stored as their exact decimal text), enums
+ * (stored by name) and Sets (stored as arrays of their elements). Dates,
+ * Lists and Maps are stored natively. <br/>
+ * A codec applies to its type and to subclasses; a codec registered for an
+ * interface applies to its implementations. Type names and codec lookups
+ * are resolved once and cached.
+ *
+ * @author vfouzdar
+ */
+public class ExecutionContextCodecRegistry {
+
+	private static final Logger LOG = LoggerFactory
+			.getLogger(ExecutionContextCodecRegistry.class);
+
+	/** Cached for types without a codec */
+	private static final ExecutionContextCodec NONE = new ExecutionContextCodec() {
+
+		public Object encode(Object value) {
+			return value;
+		}
+
+		public Object decode(Object stored, Class<?> type) {
+			return stored;
+		}
+	};
+
+	/** Cached for type names that cannot be loaded */
+	private static final Class<?> UNKNOWN = Void.class;
+
+	private final Map<Class<?>, ExecutionContextCodec> codecs = new ConcurrentHashMap<Class<?>, ExecutionContextCodec>();
+
+	private final ConcurrentMap<Class<?>, ExecutionContextCodec> resolvedCodecs = new ConcurrentHashMap<Class<?>, ExecutionContextCodec>();
+
+	private final ConcurrentMap<String, Class<?>> classes = new ConcurrentHashMap<String, Class<?>>();
+
+	private final ClassLoader classLoader;
+
+	public ExecutionContextCodecRegistry() {
+		this(ClassUtils.getDefaultClassLoader());
+	}
+
+	public ExecutionContextCodecRegistry(ClassLoader classLoader) {
+		this.classLoader = classLoader;
+		ExecutionContextCodec numberCodec = new NumberCodec();
+		for (Class<?> type : new Class<?>[] { Short.class, Byte.class,
+				Float.class, BigDecimal.class, BigInteger.class }) {
+			register(type, numberCodec);
+		}
+		register(Enum.class, new EnumCodec());
+		register(Set.class, new SetCodec());
+	}
+
+	/**
+	 * Registers or replaces the codec of a type, its subclasses and, for an
+	 * interface, its implementations.
+	 */
+	public void register(Class<?> type, ExecutionContextCodec codec) {
+		Assert.notNull(type, "Type must not be null.");
+		Assert.notNull(codec, "Codec must not be null.");
+		codecs.put(type, codec);
+		resolvedCodecs.clear();
+	}
+
+	/**
+	 * @return the codec of the most specific registered class of the type,
+	 *         else of an interface it implements, null if there is none
+	 */
+	public ExecutionContextCodec getCodec(Class<?> type) {
+		ExecutionContextCodec codec = resolvedCodecs.get(type);
+		if (codec == null) {
+			codec = findCodec(type);
+			resolvedCodecs.putIfAbsent(type, codec);
+		}
+		return codec == NONE ? null : codec;
+	}
+
+	private ExecutionContextCodec findCodec(Class<?> type) {
+		for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+			ExecutionContextCodec codec = codecs.get(c);
+			if (codec != null) {
+				return codec;
+			}
+		}
+		for (Map.Entry<Class<?>, ExecutionContextCodec> entry : codecs.entrySet()) {
+			if (entry.getKey().isInterface()
+					&& entry.getKey().isAssignableFrom(type)) {
+				return entry.getValue();
+			}
+		}
+		return NONE;
+	}
+
+	/**
+	 * @return the name stored with an encoded value, the enum class for
+	 *         constants with a body
+	 */
+	public String getTypeName(Object value) {
+		if (value instanceof Enum) {
+			return ((Enum<?>) value).getDeclaringClass().getName();
+		}
+		return value.getClass().getName();
+	}
+
+	/**
+	 * @return the class of a stored type name, null if it cannot be loaded
+	 */
+	public Class<?> resolve(String typeName) {
+		Class<?> type = classes.get(typeName);
+		if (type == null) {
+			try {
+				type = ClassUtils.forName(typeName, classLoader);
+			} catch (Throwable e) {
+				LOG.warn("Cannot load type {} of execution context values", typeName);
+				type = UNKNOWN;
+			}
+			classes.putIfAbsent(typeName, type);
+		}
+		return type == UNKNOWN ? null : type;
+	}
+
+	private static final class NumberCodec implements ExecutionContextCodec {
+
+		public Object encode(Object value) {
+			if (value instanceof BigDecimal || value instanceof BigInteger) {
+				// A double would lose precision
+				return value.toString();
+			}
+			return value;
+		}
+
+		public Object decode(Object stored, Class<?> type) {
+			if (stored instanceof String) {
+				return NumberUtils.parseNumber((String) stored,
+						type.asSubclass(Number.class));
+			}
+			return NumberUtils.convertNumberToTargetClass((Number) stored,
+					type.asSubclass(Number.class));
+		}
+	}
+
+	private static final class EnumCodec implements ExecutionContextCodec {
+
+		public Object encode(Object value) {
+			return ((Enum<?>) value).name();
+		}
+
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		public Object decode(Object stored, Class<?> type) {
+			return Enum.valueOf((Class) type, (String) stored);
+		}
+	}
+
+	/**
+	 * Elements are stored as they are, so they must be of BSON types.
+	 */
+	private static final class SetCodec implements ExecutionContextCodec {
+
+		public Object encode(Object value) {
+			return new ArrayList<Object>((Collection<?>) value);
+		}
+
+		@SuppressWarnings("unchecked")
+		public Object decode(Object stored, Class<?> type) {
+			Collection<Object> set;
+			if (ClassUtils.hasConstructor(type)) {
+				set = (Collection<Object>) BeanUtils.instantiate(type);
+			} else {
+				// e.g. unmodifiable sets
+				set = new LinkedHashSet<Object>();
+			}
+			set.addAll((Collection<?>) stored);
+			return set;
+		}
+	}
+
+}
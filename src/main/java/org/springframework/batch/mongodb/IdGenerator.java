@@ -0,0 +1,32 @@
+package org.springframework.batch.mongodb;
+
+import java.util.List;
+
+/**
+ * Strategy used by the Mongo DAOs to assign ids to Job Instances, Job
+ * Executions and Step Executions. <br/>
+ * Implementations must be thread safe and must never hand out the same id
+ * twice for a given sequence name.
+ *
+ * @see MongoSequenceIdGenerator
+ */
+public interface IdGenerator {
+
+	/**
+	 * @param sequenceName name of the sequence, one per entity type (e.g.
+	 *            "JobExecution")
+	 * @return next unused id of the sequence
+	 */
+	Long getNextId(String sequenceName);
+
+	/**
+	 * Reserves several ids at once, e.g. for the step executions of a
+	 * partitioned step.
+	 * 
+	 * @param count number of ids, positive
+	 * @return <code>count</code> unused ids of the sequence, in increasing
+	 *         order
+	 */
+	List<Long> getNextIds(String sequenceName, int count);
+
+}
@@ -0,0 +1,103 @@
+package org.springframework.batch.mongodb;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.springframework.util.Assert;
+
+/**
+ * Thread safe Bloom filter over job keys, i.e. the 32 character hex MD5
+ * digests created by {@link MongoJobInstanceDao#createJobKey}. <br/>
+ * The digest is already uniformly distributed, so its two 64 bit halves are
+ * used directly for double hashing instead of hashing the key again.
+ */
+class JobKeyBloomFilter {
+
+	private static final double FALSE_POSITIVE_RATE = 0.01;
+
+	private final AtomicLongArray bits;
+
+	private final long bitCount;
+
+	private final int hashCount;
+
+	/** False while the keys already stored are being added */
+	private volatile boolean seeded;
+
+	/**
+	 * @param expectedKeys number of keys the filter is sized for with a 1%
+	 *            false positive rate, more keys only raise that rate
+	 */
+	JobKeyBloomFilter(int expectedKeys) {
+		Assert.isTrue(expectedKeys > 0, "Expected number of keys must be positive.");
+		long m = (long) Math.ceil(-expectedKeys * Math.log(FALSE_POSITIVE_RATE)
+				/ (Math.log(2) * Math.log(2)));
+		int words = (int) ((m + 63) / 64);
+		this.bits = new AtomicLongArray(words);
+		this.bitCount = words * 64L;
+		this.hashCount = Math.max(1,
+				(int) Math.round((double) m / expectedKeys * Math.log(2)));
+	}
+
+	void put(String jobKey) {
+		long h1 = parseHex(jobKey, 0);
+		long h2 = parseHex(jobKey, 16);
+		for (int i = 0; i < hashCount; i++) {
+			long bit = index(h1 + i * h2);
+			int word = (int) (bit >>> 6);
+			long mask = 1L << bit;
+			long current;
+			do {
+				current = bits.get(word);
+				if ((current & mask) != 0) {
+					break;
+				}
+			} while (!bits.compareAndSet(word, current, current | mask));
+		}
+	}
+
+	void markSeeded() {
+		seeded = true;
+	}
+
+	/**
+	 * @return whether {@link #mightContain(String)} can be trusted, i.e. all
+	 *         keys stored before the filter was created have been added
+	 */
+	boolean isSeeded() {
+		return seeded;
+	}
+
+	/**
+	 * @return false if the key has definitely never been {@link #put(String)}
+	 */
+	boolean mightContain(String jobKey) {
+		long h1 = parseHex(jobKey, 0);
+		long h2 = parseHex(jobKey, 16);
+		for (int i = 0; i < hashCount; i++) {
+			long bit = index(h1 + i * h2);
+			if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private long index(long hash) {
+		return (hash & Long.MAX_VALUE) % bitCount;
+	}
+
+	/**
+	 * Unsigned parse of 16 hex characters, shorter keys are padded with zeros
+	 */
+	private static long parseHex(String key, int offset) {
+		long value = 0;
+		for (int i = offset; i < offset + 16; i++) {
+			value <<= 4;
+			if (i < key.length()) {
+				value |= Character.digit(key.charAt(i), 16) & 0xf;
+			}
+		}
+		return value;
+	}
+
+}
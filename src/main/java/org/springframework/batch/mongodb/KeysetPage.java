@@ -0,0 +1,54 @@
+package org.springframework.batch.mongodb;
+
+import java.util.List;
+
+/**
+ * One page of a keyset (seek) paginated listing, newest first. <br/>
+ * The continuation token is opaque to callers and continues the listing after
+ * the last id of this page, so every page costs the same whatever its depth.
+ *
+ * @param <T> JobInstance or JobExecution
+ */
+public class KeysetPage<T> {
+
+	private final List<T> content;
+
+	private final String continuationToken;
+
+	KeysetPage(List<T> content, Long lastId) {
+		this.content = content;
+		this.continuationToken = lastId == null ? null : Long.toString(lastId,
+				Character.MAX_RADIX);
+	}
+
+	public List<T> getContent() {
+		return content;
+	}
+
+	/**
+	 * @return token of the next page, null if this is the last page
+	 */
+	public String getContinuationToken() {
+		return continuationToken;
+	}
+
+	public boolean hasNext() {
+		return continuationToken != null;
+	}
+
+	/**
+	 * @return last id seen, null for the first page
+	 */
+	static Long parseContinuationToken(String continuationToken) {
+		if (continuationToken == null) {
+			return null;
+		}
+		try {
+			return Long.valueOf(continuationToken, Character.MAX_RADIX);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid continuation token: "
+					+ continuationToken);
+		}
+	}
+
+}
@@ -0,0 +1,217 @@
+package org.springframework.batch.mongodb;
+
+import static com.mongodb.BasicDBObjectBuilder.start;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.batch.core.JobExecution;
+import org.springframework.batch.core.StepExecution;
+import org.springframework.batch.core.repository.dao.StepExecutionDao;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.stereotype.Repository;
+import org.springframework.util.Assert;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.WriteConcern;
+import com.mongodb.WriteResult;
+
+/**
+ * Alternative to {@link MongoStepExecutionDao} storing Step Executions as an
+ * array inside the document of their Job Execution, so that all steps of a
+ * Job Execution are loaded with a single read. <br/>
+ * Step Executions are updated in place, matched by id and version. Documents
+ * have the same fields as in the StepExecution collection. Suits jobs with a
+ * bounded number of steps; the Job Execution document, steps included, must
+ * stay below the 16MB document limit.
+ * 
+ * @see MongoJobRepositoryFactoryBean#setEmbeddedStepExecutions(boolean)
+ */
+@Repository
+public class MongoEmbeddedStepExecutionDao extends AbstractMongoDao implements
+		StepExecutionDao {
+
+	public static final String STEP_EXECUTIONS_KEY = "stepExecutions";
+
+	private MongoTemplate mongoTemplate;
+
+	public MongoEmbeddedStepExecutionDao() {
+	}
+
+	public MongoEmbeddedStepExecutionDao(MongoTemplate mongoTemplate) {
+		this.mongoTemplate = mongoTemplate;
+	}
+
+	public void setMongoTemplate(MongoTemplate mongoTemplate) {
+		this.mongoTemplate = mongoTemplate;
+	}
+
+	public void saveStepExecution(StepExecution stepExecution) {
+		saveStepExecutions(Collections.singletonList(stepExecution));
+	}
+
+	/**
+	 * One id reservation, and one $push per Job Execution.
+	 */
+	public void saveStepExecutions(Collection<StepExecution> stepExecutions) {
+		Assert.notNull(stepExecutions,
+				"Attempt to save an null collect of step executions");
+		if (stepExecutions.isEmpty()) {
+			return;
+		}
+		for (StepExecution stepExecution : stepExecutions) {
+			Assert.isNull(stepExecution.getId(),
+					"to-be-saved (not updated) StepExecution can't already have an id assigned");
+			Assert.isNull(stepExecution.getVersion(),
+					"to-be-saved (not updated) StepExecution can't already have a version assigned");
+			MongoStepExecutionDao.validateStepExecution(stepExecution);
+			Assert.notNull(stepExecution.getJobExecutionId(),
+					"JobExecution must be saved before its StepExecutions");
+		}
+
+		List<Long> ids = getNextIds(StepExecution.class.getSimpleName(),
+				stepExecutions.size(), mongoTemplate);
+		Map<Long, List<DBObject>> byJobExecution = new LinkedHashMap<Long, List<DBObject>>();
+		int i = 0;
+		for (StepExecution stepExecution : stepExecutions) {
+			stepExecution.setId(ids.get(i++));
+			stepExecution.incrementVersion(); // should be 0 now
+			DBObject object = MongoStepExecutionDao
+					.toDbObjectWithoutVersion(stepExecution);
+			object.put(VERSION_KEY, stepExecution.getVersion());
+			List<DBObject> objects = byJobExecution.get(stepExecution
+					.getJobExecutionId());
+			if (objects == null) {
+				objects = new ArrayList<DBObject>();
+				byJobExecution.put(stepExecution.getJobExecutionId(), objects);
+			}
+			objects.add(object);
+		}
+
+		for (Map.Entry<Long, List<DBObject>> entry : byJobExecution.entrySet()) {
+			WriteResult result = getCollection().update(
+					jobExecutionIdObj(entry.getKey()),
+					new BasicDBObject("$push", new BasicDBObject(
+							STEP_EXECUTIONS_KEY, new BasicDBObject("$each",
+									entry.getValue()))), false, false,
+					WriteConcern.ACKNOWLEDGED);
+			if (result.getN() == 0) {
+				throw new IllegalStateException("JobExecution id="
+						+ entry.getKey() + " not found.");
+			}
+		}
+	}
+
+	/**
+	 * Positional $set of the fields of the array element with the id and
+	 * version of the Step Execution. The element is located by the condition
+	 * on its id, ids being unique the $elemMatch on id and version matches
+	 * the same element.
+	 */
+	public void updateStepExecution(StepExecution stepExecution) {
+		Integer currentVersion = stepExecution.getVersion();
+		Integer newVersion = currentVersion + 1;
+		DBObject object = MongoStepExecutionDao
+				.toDbObjectWithoutVersion(stepExecution);
+		object.put(VERSION_KEY, newVersion);
+		DBObject set = new BasicDBObject();
+		for (String key : object.keySet()) {
+			set.put(STEP_EXECUTIONS_KEY + ".$." + key, object.get(key));
+		}
+		WriteResult result = getCollection().update(
+				start().add(JOB_EXECUTION_ID_KEY, stepExecution.getJobExecutionId())
+						.add(STEP_EXECUTIONS_KEY, new BasicDBObject("$elemMatch",
+								start().add(STEP_EXECUTION_ID_KEY, stepExecution.getId())
+										.add(VERSION_KEY, currentVersion).get()))
+						.add(STEP_EXECUTIONS_KEY + "." + STEP_EXECUTION_ID_KEY, stepExecution.getId())
+						.get(),
+				new BasicDBObject("$set", set), false, false,
+				WriteConcern.ACKNOWLEDGED);
+
+		if (result.getN() == 0) {
+			DBObject existing = findStepExecution(
+					stepExecution.getJobExecutionId(), stepExecution.getId());
+			if (existing == null) {
+				throw new IllegalArgumentException(
+						"Can't update this stepExecution, it was never saved.");
+			}
+			throw new OptimisticLockingFailureException(
+					"Attempt to update step execution id="
+							+ stepExecution.getId() + " with wrong version ("
+							+ currentVersion + "), where current version is "
+							+ existing.get(VERSION_KEY));
+		}
+
+		stepExecution.incrementVersion();
+	}
+
+	public StepExecution getStepExecution(JobExecution jobExecution,
+			Long stepExecutionId) {
+		return MongoStepExecutionDao.mapStepExecution(
+				findStepExecution(jobExecution.getId(), stepExecutionId),
+				jobExecution);
+	}
+
+	/**
+	 * A single read of the steps of the Job Execution document.
+	 */
+	@SuppressWarnings("unchecked")
+	public void addStepExecutions(JobExecution jobExecution) {
+		DBObject object = getCollection().findOne(
+				jobExecutionIdObj(jobExecution.getId()),
+				new BasicDBObject(STEP_EXECUTIONS_KEY, 1));
+		if (object == null || object.get(STEP_EXECUTIONS_KEY) == null) {
+			return;
+		}
+		List<DBObject> steps = new ArrayList<DBObject>(
+				(List<DBObject>) object.get(STEP_EXECUTIONS_KEY));
+		Collections.sort(steps, new Comparator<DBObject>() {
+			public int compare(DBObject o1, DBObject o2) {
+				return ((Long) o1.get(STEP_EXECUTION_ID_KEY))
+						.compareTo((Long) o2.get(STEP_EXECUTION_ID_KEY));
+			}
+		});
+		for (DBObject step : steps) {
+			// Adds the step to the JobExecution
+			MongoStepExecutionDao.mapStepExecution(step, jobExecution);
+		}
+	}
+
+	/**
+	 * @return the array element of the Step Execution, null if not found
+	 */
+	@SuppressWarnings("unchecked")
+	private DBObject findStepExecution(Long jobExecutionId, Long stepExecutionId) {
+		DBObject object = getCollection().findOne(
+				start().add(JOB_EXECUTION_ID_KEY, jobExecutionId)
+						.add(STEP_EXECUTIONS_KEY + "." + STEP_EXECUTION_ID_KEY,
+								stepExecutionId).get(),
+				new BasicDBObject(STEP_EXECUTIONS_KEY, new BasicDBObject(
+						"$elemMatch", MongoStepExecutionDao
+								.stepExecutionIdObj(stepExecutionId))));
+		if (object == null) {
+			return null;
+		}
+		// Servers ignoring the $elemMatch projection return all steps
+		for (DBObject step : (List<DBObject>) object.get(STEP_EXECUTIONS_KEY)) {
+			if (stepExecutionId.equals(step.get(STEP_EXECUTION_ID_KEY))) {
+				return step;
+			}
+		}
+		return null;
+	}
+
+	@Override
+	protected DBCollection getCollection() {
+		return mongoTemplate.getCollection(JobExecution.class.getSimpleName());
+	}
+
+}
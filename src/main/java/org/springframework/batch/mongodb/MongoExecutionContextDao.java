@@ -1,31 +1,61 @@
 package org.springframework.batch.mongodb;
 
-import java.math.BigDecimal;
-import java.math.BigInteger;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
 
 import javax.annotation.PostConstruct;
 
+import org.bson.types.ObjectId;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.batch.core.JobExecution;
 import org.springframework.batch.core.StepExecution;
+import org.springframework.batch.core.repository.ExecutionContextSerializer;
 import org.springframework.batch.core.repository.dao.ExecutionContextDao;
 import org.springframework.batch.item.ExecutionContext;
 import org.springframework.data.mongodb.core.MongoTemplate;
 import org.springframework.stereotype.Repository;
 import org.springframework.util.Assert;
-import org.springframework.util.NumberUtils;
 
 import com.mongodb.BasicDBObject;
 import com.mongodb.BasicDBObjectBuilder;
 import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
+import com.mongodb.DefaultDBDecoder;
+import com.mongodb.DefaultDBEncoder;
+import com.mongodb.MongoException;
+import com.mongodb.WriteConcern;
+import com.mongodb.gridfs.GridFS;
+import com.mongodb.gridfs.GridFSDBFile;
+import com.mongodb.gridfs.GridFSInputFile;
 
 /**
  * Uses MongoTemplate to perform CRUD on Springbatch's Execution context to
  * Mongo DB. <br/>MongoTemplate needs to be set as a property during bean definition
+ * <br/>Each entry is stored as a field of the document, its key with dots
+ * and a leading underscore escaped, unless a
+ * {@link #setSerializer(ExecutionContextSerializer) serializer} is set: the
+ * whole context is then stored as one binary field, deflated above
+ * {@link #setCompressionThreshold(int) compressionThreshold} bytes.
+ * <br/>Contexts above {@link #setSpillThreshold(int) spillThreshold} bytes
+ * are stored in GridFS and referenced from their document.
  * 
  * @author Baruch S.
  * @author vfouzdar
@@ -37,16 +67,154 @@ public class MongoExecutionContextDao extends AbstractMongoDao implements
 	private static final Logger LOG = LoggerFactory
 			.getLogger(MongoExecutionContextDao.class);
 
+	/** Serialized context, with {@link #setSerializer(ExecutionContextSerializer)} */
+	public static final String SERIALIZED_CONTEXT_KEY = "_context";
+
+	/** True when the serialized context is deflated */
+	public static final String DEFLATED_KEY = "_deflated";
+
+	/** Id of the GridFS file holding a context above the spill threshold */
+	public static final String GRIDFS_FILE_KEY = "_gridFsFile";
+
+	/** Changes on every write of a context, to tell whether a cached copy is current */
+	public static final String VERSION_STAMP_KEY = "_version";
+
+	private static final String FILENAME_KEY = "filename";
+
+	/**
+	 * Replaces the leading underscore of context keys, which would otherwise
+	 * clash with the fields of this DAO and of Mongo
+	 */
+	private static final String UNDERSCORE_ESCAPE = "{underscore}";
+
+	private static final DBObject VERSION_STAMP_FIELDS = BasicDBObjectBuilder
+			.start().add(VERSION_STAMP_KEY, 1).add(ID_KEY, 0).get();
+
+	private static final DBObject GRIDFS_FILE_FIELDS = BasicDBObjectBuilder
+			.start().add(GRIDFS_FILE_KEY, 1).add(ID_KEY, 0).get();
+
 	/**
 	 * mongoTemplate is used to CRUD Job execution data in Mongo db. This bean
 	 * needs to be set during bean definition for MongoExecutionContextDao
 	 */
 	private MongoTemplate mongoTemplate;
 
+	/**
+	 * LRU map of execution to the fingerprints of the fields last written, so
+	 * that updates only send the keys that changed. Disabled when null.
+	 */
+	private Map<String, Snapshot> snapshots;
+
+	/**
+	 * Optional, stores contexts serialized in one binary field instead of one
+	 * field per entry.
+	 */
+	private ExecutionContextSerializer serializer;
+
+	/**
+	 * Serialized contexts larger than this number of bytes are deflated.
+	 */
+	private int compressionThreshold = 8192;
+
+	/**
+	 * Contexts larger than this number of bytes are stored in GridFS.
+	 */
+	private int spillThreshold = 15 * 1024 * 1024;
+
+	/**
+	 * Codecs of the values BSON has no type for
+	 */
+	private ExecutionContextCodecRegistry codecRegistry = new ExecutionContextCodecRegistry();
+
+	/** Lazily created, the constructor ensures an index */
+	private volatile GridFS gridFs;
+
+	/** Recently read contexts, disabled when null */
+	private volatile NearCache nearCache;
+
+	public MongoExecutionContextDao() {
+		setSnapshotCacheSize(1000);
+	}
+
 	public void setMongoTemplate(MongoTemplate mongoTemplate) {
 		this.mongoTemplate = mongoTemplate;
 	}
 
+	/**
+	 * Number of execution contexts whose last written state is kept to send
+	 * delta updates. Defaults to 1000, 0 disables delta updates so that every
+	 * update rewrites the whole context.
+	 */
+	public void setSnapshotCacheSize(final int size) {
+		Assert.isTrue(size >= 0, "Cache size must not be negative.");
+		if (size == 0) {
+			snapshots = null;
+			return;
+		}
+		snapshots = Collections.synchronizedMap(new LinkedHashMap<String, Snapshot>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Snapshot> eldest) {
+				return size() > size;
+			}
+		});
+	}
+
+	/**
+	 * Optional, e.g. Spring Batch's DefaultExecutionContextSerializer: stores
+	 * each context as one binary field, which holds any serializable value
+	 * and keeps large contexts compact. Delta updates do not apply, every
+	 * update rewrites the context. Contexts already stored with one field
+	 * per entry are still read.
+	 */
+	public void setSerializer(ExecutionContextSerializer serializer) {
+		this.serializer = serializer;
+	}
+
+	/**
+	 * Size in bytes above which serialized contexts are deflated, 8192 by
+	 * default. Only used with a serializer.
+	 */
+	public void setCompressionThreshold(int compressionThreshold) {
+		Assert.isTrue(compressionThreshold >= 0, "Compression threshold must not be negative.");
+		this.compressionThreshold = compressionThreshold;
+	}
+
+	/**
+	 * Bytes of recently read contexts, counted by their BSON size, that are
+	 * kept to answer later reads, e.g. of the partitions of a restarted step
+	 * or of an admin console. 0 (the default) disables the cache. <br/>
+	 * A cached context is only returned after a read of just its version
+	 * stamp shows that it was not written since, also by other nodes. Writes
+	 * of this DAO invalidate it, contexts stored in GridFS are not cached.
+	 */
+	public void setNearCacheSize(long size) {
+		Assert.isTrue(size >= 0, "Cache size must not be negative.");
+		nearCache = size == 0 ? null : new NearCache(size);
+	}
+
+	/**
+	 * Optional, replaces the default registry, e.g. by one with codecs for
+	 * application types. Not used with a serializer.
+	 */
+	public void setCodecRegistry(ExecutionContextCodecRegistry codecRegistry) {
+		Assert.notNull(codecRegistry, "Codec registry must not be null.");
+		this.codecRegistry = codecRegistry;
+	}
+
+	/**
+	 * Size in bytes above which a context is streamed into GridFS (the
+	 * ExecutionContext.files and .chunks collections) and only referenced
+	 * from its document, 15 MB by default so that contexts never hit the
+	 * 16 MB document limit. The size is the serialized one with a
+	 * serializer, the BSON size otherwise.
+	 */
+	public void setSpillThreshold(int spillThreshold) {
+		Assert.isTrue(spillThreshold >= 0, "Spill threshold must not be negative.");
+		this.spillThreshold = spillThreshold;
+	}
+
 	@PostConstruct
 	public void init() {
 		getCollection().ensureIndex(
@@ -82,71 +250,571 @@ public class MongoExecutionContextDao extends AbstractMongoDao implements
 				stepExecution.getId(), stepExecution.getExecutionContext());
 	}
 
+	/**
+	 * Sends a $set/$unset of the keys that changed since the context was last
+	 * written, nothing if none did. The delta only applies to the document
+	 * still carrying the version stamp of that write. The whole context is
+	 * written when the last written state is unknown (first save, restart,
+	 * evicted snapshot), when the document is missing or was written since,
+	 * e.g. by another node, or when the delta is rejected, e.g. because the
+	 * document outgrew the size limit.
+	 */
 	private void saveOrUpdateExecutionContext(String executionIdKey,
 			Long executionId, ExecutionContext executionContext) {
 		Assert.notNull(executionId, "ExecutionId must not be null.");
 		Assert.notNull(executionContext,
 				"The ExecutionContext must not be null.");
 
+		DBObject query = new BasicDBObject(executionIdKey, executionId);
+		DBObject dbObject = toDbObject(executionIdKey, executionId,
+				executionContext);
+		String snapshotKey = executionIdKey + executionId;
+		invalidate(snapshotKey);
+		Map<String, Object> fingerprints = null;
+		if (serializer == null) {
+			fingerprints = fingerprints(dbObject);
+			Map<String, Snapshot> cache = snapshots;
+			Snapshot snapshot = cache == null ? null : cache.get(snapshotKey);
+			if (snapshot != null) {
+				DBObject set = new BasicDBObject();
+				for (Map.Entry<String, Object> entry : fingerprints.entrySet()) {
+					if (!entry.getValue().equals(
+							snapshot.fingerprints.get(entry.getKey()))) {
+						set.put(entry.getKey(), dbObject.get(entry.getKey()));
+					}
+				}
+				DBObject unset = new BasicDBObject();
+				for (String key : snapshot.fingerprints.keySet()) {
+					if (!fingerprints.containsKey(key)) {
+						unset.put(key, 1);
+					}
+				}
+				if (set.keySet().isEmpty() && unset.keySet().isEmpty()) {
+					return;
+				}
+				ObjectId versionStamp = new ObjectId();
+				set.put(VERSION_STAMP_KEY, versionStamp);
+				DBObject update = new BasicDBObject("$set", set);
+				if (!unset.keySet().isEmpty()) {
+					update.put("$unset", unset);
+				}
+				DBObject unchanged = BasicDBObjectBuilder.start(query.toMap())
+						.add(VERSION_STAMP_KEY, snapshot.versionStamp).get();
+				try {
+					if (getCollection().update(unchanged, update, false, false,
+							WriteConcern.ACKNOWLEDGED).getN() > 0) {
+						cache.put(snapshotKey, new Snapshot(versionStamp,
+								fingerprints));
+						return;
+					}
+					LOG.debug("Execution context {} is missing or was written since, writing it whole", snapshotKey);
+				} catch (MongoException e) {
+					LOG.debug("Delta update of {} rejected, writing it whole", snapshotKey, e);
+				}
+			}
+		}
+
+		dbObject.put(VERSION_STAMP_KEY, new ObjectId());
+		DBObject stored = spillIfLarge(executionIdKey, executionId, dbObject);
+		if (stored == dbObject) {
+			// Acknowledged, and returns the reference of a context spilled
+			// before, also by another node, whose files go once it is replaced
+			DBObject previous = getCollection().findAndModify(query,
+					GRIDFS_FILE_FIELDS, null, false, dbObject, false, true);
+			if (previous != null && previous.get(GRIDFS_FILE_KEY) != null) {
+				removeFiles(executionIdKey, executionId, null);
+			}
+			if (fingerprints != null) {
+				remember(snapshotKey, dbObject.get(VERSION_STAMP_KEY),
+						fingerprints);
+			}
+		} else {
+			// Referenced before the previous file goes away
+			getCollection().update(query, stored, true, false,
+					WriteConcern.ACKNOWLEDGED);
+			removeFiles(executionIdKey, executionId, stored.get(GRIDFS_FILE_KEY));
+			forget(snapshotKey);
+		}
+	}
+
+	private void remember(String snapshotKey, Object versionStamp,
+			Map<String, Object> fingerprints) {
+		Map<String, Snapshot> cache = snapshots;
+		if (cache != null) {
+			cache.put(snapshotKey, new Snapshot(versionStamp, fingerprints));
+		}
+	}
+
+	private void invalidate(String cacheKey) {
+		NearCache cache = nearCache;
+		if (cache != null) {
+			cache.remove(cacheKey);
+		}
+	}
+
+	private void forget(String snapshotKey) {
+		Map<String, Snapshot> cache = snapshots;
+		if (cache != null) {
+			cache.remove(snapshotKey);
+		}
+	}
+
+	/**
+	 * Writes a context above the spill threshold to GridFS. Without a
+	 * serializer the context is only encoded to measure it when an upper
+	 * bound of its BSON size is above the threshold.
+	 * 
+	 * @return the document referencing the file, or the given one if the
+	 *         context is small enough to be stored inline
+	 */
+	private DBObject spillIfLarge(String executionIdKey, Long executionId,
+			DBObject dbObject) {
+		byte[] bytes;
+		if (serializer != null) {
+			bytes = (byte[]) dbObject.get(SERIALIZED_CONTEXT_KEY);
+		} else if (maxBsonSize(dbObject) <= spillThreshold) {
+			return dbObject;
+		} else {
+			bytes = new DefaultDBEncoder().encode(dbObject);
+		}
+		if (bytes.length <= spillThreshold) {
+			return dbObject;
+		}
+		GridFSInputFile file = getGridFs().createFile(bytes);
+		file.setFilename(fileName(executionIdKey, executionId));
+		file.save();
+
+		DBObject reference = new BasicDBObject(executionIdKey, executionId);
+		reference.put(GRIDFS_FILE_KEY, file.getId());
+		reference.put(VERSION_STAMP_KEY, dbObject.get(VERSION_STAMP_KEY));
+		if (serializer != null) {
+			reference.put(DEFLATED_KEY, dbObject.get(DEFLATED_KEY));
+		}
+		return reference;
+	}
+
+	/**
+	 * Upper bound of the BSON size of a value, without encoding it: strings
+	 * count 3 bytes per char, the most UTF-8 takes, scalars 16 bytes. Values
+	 * of other types count as {@link Integer#MAX_VALUE}, so that they are
+	 * measured exactly.
+	 */
+	private static long maxBsonSize(Object value) {
+		if (value instanceof String) {
+			return 5 + 3L * ((String) value).length();
+		}
+		if (value instanceof byte[]) {
+			return 5 + ((byte[]) value).length;
+		}
+		if (value == null || value instanceof Boolean
+				|| value instanceof Number || value instanceof Date
+				|| value instanceof ObjectId) {
+			return 16;
+		}
+		long size = 5;
+		if (value instanceof Map) {
+			for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+				// Type, name and its terminator
+				size += 2 + 3L * String.valueOf(entry.getKey()).length()
+						+ maxBsonSize(entry.getValue());
+			}
+			return size;
+		}
+		if (value instanceof Collection) {
+			for (Object element : (Collection<?>) value) {
+				// Named by their index
+				size += 12 + maxBsonSize(element);
+			}
+			return size;
+		}
+		return Integer.MAX_VALUE;
+	}
+
+	/**
+	 * Removes the GridFS files of a context, except the current one.
+	 */
+	private void removeFiles(String executionIdKey, Long executionId,
+			Object currentFileId) {
+		DBObject query = new BasicDBObject(FILENAME_KEY, fileName(
+				executionIdKey, executionId));
+		if (currentFileId != null) {
+			query.put(ID_KEY, new BasicDBObject("$ne", currentFileId));
+		}
+		getGridFs().remove(query);
+	}
+
+	private static String fileName(String executionIdKey, Long executionId) {
+		return executionIdKey + ":" + executionId;
+	}
+
+	private GridFS getGridFs() {
+		GridFS fs = gridFs;
+		if (fs == null) {
+			fs = new GridFS(mongoTemplate.getDb(), getCollection().getName());
+			gridFs = fs;
+		}
+		return fs;
+	}
+
+	/**
+	 * Immutable values are compared as is, others by their BSON encoding so
+	 * that later changes to a mutable value are detected.
+	 */
+	private Map<String, Object> fingerprints(DBObject dbObject) {
+		Map<String, Object> fingerprints = new HashMap<String, Object>();
+		for (String key : dbObject.keySet()) {
+			if (VERSION_STAMP_KEY.equals(key)) {
+				continue;
+			}
+			Object value = dbObject.get(key);
+			if (value instanceof String || value instanceof Integer
+					|| value instanceof Long || value instanceof Double
+					|| value instanceof Boolean) {
+				fingerprints.put(key, value);
+			} else {
+				// Also tells null and values of different types apart
+				fingerprints.put(key, ByteBuffer.wrap(new DefaultDBEncoder()
+						.encode(new BasicDBObject(key, value))));
+			}
+		}
+		return fingerprints;
+	}
+
+	private DBObject toDbObject(String executionIdKey, Long executionId,
+			ExecutionContext executionContext) {
 		DBObject dbObject = new BasicDBObject(executionIdKey, executionId);
+		if (serializer != null) {
+			byte[] bytes = serialize(executionContext);
+			boolean deflate = bytes.length > compressionThreshold;
+			dbObject.put(SERIALIZED_CONTEXT_KEY, deflate ? deflate(bytes) : bytes);
+			dbObject.put(DEFLATED_KEY, deflate);
+			return dbObject;
+		}
 		for (Map.Entry<String, Object> entry : executionContext.entrySet()) {
 			Object value = entry.getValue();
 			String key = entry.getKey();
-			dbObject.put(key.replaceAll(DOT_STRING, DOT_ESCAPE_STRING), value);
-			if (value instanceof BigDecimal || value instanceof BigInteger) {
-				dbObject.put(key + TYPE_SUFFIX, value.getClass().getName());
+			String escapedKey = escapeKey(key);
+			ExecutionContextCodec codec = value == null ? null : codecRegistry
+					.getCodec(value.getClass());
+			if (codec == null) {
+				dbObject.put(escapedKey, value);
+			} else {
+				dbObject.put(escapedKey, codec.encode(value));
+				// Escaped too, a dot would make it a path in $set
+				dbObject.put(escapedKey + TYPE_SUFFIX,
+						codecRegistry.getTypeName(value));
 			}
 		}
-		getCollection().update(new BasicDBObject(executionIdKey, executionId),
-				dbObject, true, false);
+		return dbObject;
 	}
 
-	@SuppressWarnings({ "unchecked" })
 	private ExecutionContext getExecutionContext(String executionIdKey,
 			Long executionId) {
 		Assert.notNull(executionId, "ExecutionId must not be null.");
-		DBObject result = getCollection().findOne(
-				new BasicDBObject(executionIdKey, executionId));
+		DBObject query = new BasicDBObject(executionIdKey, executionId);
+		String cacheKey = executionIdKey + executionId;
+		NearCache cache = nearCache;
+		if (cache != null) {
+			NearCacheEntry entry = cache.get(cacheKey);
+			if (entry != null) {
+				DBObject current = getCollection().findOne(query,
+						VERSION_STAMP_FIELDS);
+				if (current != null
+						&& entry.versionStamp.equals(current
+								.get(VERSION_STAMP_KEY))) {
+					// Decoded again, callers change the contexts they get
+					return toExecutionContext(executionIdKey, executionId,
+							new DefaultDBDecoder().decode(entry.bson,
+									getCollection()));
+				}
+				cache.remove(cacheKey);
+			}
+		}
+		DBObject result = getCollection().findOne(query);
+		if (cache != null && result != null
+				&& result.get(VERSION_STAMP_KEY) != null
+				&& !result.containsField(GRIDFS_FILE_KEY)) {
+			cache.put(cacheKey, new NearCacheEntry(result.get(VERSION_STAMP_KEY),
+					new DefaultDBEncoder().encode(result)));
+		}
+		return toExecutionContext(executionIdKey, executionId, result);
+	}
+
+	private ExecutionContext toExecutionContext(String executionIdKey,
+			Long executionId, DBObject result) {
+		if (result != null && result.containsField(GRIDFS_FILE_KEY)) {
+			GridFSDBFile file = getGridFs().findOne(
+					new BasicDBObject(ID_KEY, result.get(GRIDFS_FILE_KEY)));
+			Assert.state(file != null, "GridFS file of the execution context of "
+					+ executionIdKey + " " + executionId + " is missing.");
+			// Streamed chunk by chunk, the file is never held in heap as a whole
+			InputStream in = file.getInputStream();
+			if (result.containsField(DEFLATED_KEY)) {
+				return deserialize(in,
+						Boolean.TRUE.equals(result.get(DEFLATED_KEY)));
+			}
+			try {
+				result = new DefaultDBDecoder().decode(in, getCollection());
+			} catch (IOException e) {
+				throw new IllegalStateException(
+						"Unable to read the execution context from GridFS", e);
+			}
+		} else if (result != null && result.containsField(SERIALIZED_CONTEXT_KEY)) {
+			return deserialize(new ByteArrayInputStream(
+					(byte[]) result.get(SERIALIZED_CONTEXT_KEY)),
+					Boolean.TRUE.equals(result.get(DEFLATED_KEY)));
+		}
 		ExecutionContext executionContext = new ExecutionContext();
 		if (result != null) {
 			result.removeField(executionIdKey);
+			result.removeField(VERSION_STAMP_KEY);
 			removeSystemFields(result);
 			for (String key : result.keySet()) {
+				if (key.endsWith(TYPE_SUFFIX)
+						&& result.containsField(key.substring(0, key.length()
+								- TYPE_SUFFIX.length()))) {
+					continue;
+				}
 				Object value = result.get(key);
-				String type = (String) result.get(key + TYPE_SUFFIX);
-				if (type != null
-						&& Number.class.isAssignableFrom(value.getClass())) {
-					try {
-						value = NumberUtils.convertNumberToTargetClass(
-								(Number) value,
-								(Class<? extends Number>) Class.forName(type));
-					} catch (Exception e) {
-						LOG.warn("Failed to convert {} to {}", key, type);
-					}
+				Object type = result.get(key + TYPE_SUFFIX);
+				if (type instanceof String && value != null) {
+					value = decode(key, value, (String) type);
 				}
 				//Mongo db does not allow key name with "." character.
-				executionContext.put(
-						key.replaceAll(DOT_ESCAPE_STRING, DOT_STRING), value);
+				executionContext.put(unescapeKey(key), value);
 			}
 		}
 		return executionContext;
 	}
 
+	/**
+	 * Escapes dots and a leading underscore, so that keys like _version or
+	 * _id stay context entries. Keys stored with a leading underscore before
+	 * it was escaped are still read as they are.
+	 */
+	private static String escapeKey(String key) {
+		String escaped = escapeDots(key);
+		return escaped.startsWith("_") ? UNDERSCORE_ESCAPE
+				+ escaped.substring(1) : escaped;
+	}
+
+	private static String unescapeKey(String key) {
+		String unescaped = key.startsWith(UNDERSCORE_ESCAPE) ? "_"
+				+ key.substring(UNDERSCORE_ESCAPE.length()) : key;
+		return unescapeDots(unescaped);
+	}
+
+	private Object decode(String key, Object value, String typeName) {
+		Class<?> type = codecRegistry.resolve(typeName);
+		ExecutionContextCodec codec = type == null ? null : codecRegistry
+				.getCodec(type);
+		if (codec == null) {
+			return value;
+		}
+		try {
+			return codec.decode(value, type);
+		} catch (Exception e) {
+			LOG.warn("Failed to convert {} to {}", key, typeName);
+			return value;
+		}
+	}
+
+	private byte[] serialize(ExecutionContext executionContext) {
+		Map<String, Object> map = new HashMap<String, Object>();
+		for (Map.Entry<String, Object> entry : executionContext.entrySet()) {
+			map.put(entry.getKey(), entry.getValue());
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try {
+			serializer.serialize(map, out);
+		} catch (IOException e) {
+			throw new IllegalArgumentException(
+					"Could not serialize the execution context", e);
+		}
+		return out.toByteArray();
+	}
+
+	private static byte[] deflate(byte[] bytes) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 4);
+		DeflaterOutputStream deflater = new DeflaterOutputStream(out);
+		try {
+			deflater.write(bytes);
+			deflater.close();
+		} catch (IOException e) {
+			// Not thrown by a ByteArrayOutputStream
+			throw new IllegalStateException(e);
+		}
+		return out.toByteArray();
+	}
+
+	private ExecutionContext deserialize(InputStream in, boolean deflated) {
+		Assert.state(serializer != null,
+				"A serializer is needed to read serialized execution contexts.");
+		if (deflated) {
+			in = new InflaterInputStream(in);
+		}
+		try {
+			return new ExecutionContext(serializer.deserialize(in));
+		} catch (IOException e) {
+			throw new IllegalArgumentException(
+					"Unable to deserialize the execution context", e);
+		}
+	}
+
 	protected DBCollection getCollection() {
 
 		return mongoTemplate.getCollection(ExecutionContext.class
 				.getSimpleName());
 	}
 
+	/**
+	 * Saves the contexts of new step executions, e.g. the partitions of a
+	 * step, in a constant number of round trips: each distinct job context is
+	 * upserted once, and the step contexts are inserted with one insert per
+	 * {@link #INSERT_BATCH_SIZE} contexts. Previous contexts of the same step
+	 * executions are removed afterwards, by their version stamp; until then
+	 * readers may still get them.
+	 */
 	@Override
 	public void saveExecutionContexts(Collection<StepExecution> stepExecutions) {
 		Assert.notNull(stepExecutions,
 				"Attempt to save a null collection of step executions");
+		if (stepExecutions.isEmpty()) {
+			return;
+		}
+		Map<Long, JobExecution> jobExecutions = new LinkedHashMap<Long, JobExecution>();
+		List<Long> stepExecutionIds = new ArrayList<Long>(stepExecutions.size());
+		List<DBObject> stepContexts = new ArrayList<DBObject>(stepExecutions.size());
 		for (StepExecution stepExecution : stepExecutions) {
-			saveExecutionContext(stepExecution);
-			saveExecutionContext(stepExecution.getJobExecution());
+			Long stepExecutionId = stepExecution.getId();
+			Assert.notNull(stepExecutionId, "ExecutionId must not be null.");
+			Assert.notNull(stepExecution.getExecutionContext(),
+					"The ExecutionContext must not be null.");
+			stepExecutionIds.add(stepExecutionId);
+			stepContexts.add(toDbObject(STEP_EXECUTION_ID_KEY, stepExecutionId,
+					stepExecution.getExecutionContext()));
+			JobExecution jobExecution = stepExecution.getJobExecution();
+			jobExecutions.put(jobExecution.getId(), jobExecution);
 		}
 
+		for (JobExecution jobExecution : jobExecutions.values()) {
+			saveExecutionContext(jobExecution);
+		}
+		List<Object> versionStamps = new ArrayList<Object>(stepContexts.size());
+		for (int i = 0; i < stepContexts.size(); i++) {
+			DBObject stepContext = stepContexts.get(i);
+			invalidate(STEP_EXECUTION_ID_KEY + stepExecutionIds.get(i));
+			ObjectId versionStamp = new ObjectId();
+			stepContext.put(VERSION_STAMP_KEY, versionStamp);
+			versionStamps.add(versionStamp);
+			DBObject stored = spillIfLarge(STEP_EXECUTION_ID_KEY,
+					stepExecutionIds.get(i), stepContext);
+			if (stored != stepContext) {
+				stepContexts.set(i, stored);
+			}
+		}
+		// No bulk upsert in this driver: the new contexts are inserted before
+		// the previous ones are removed, which a failure never loses. Files
+		// of contexts spilled before go once their references are removed.
+		insertInBatches(stepContexts);
+		DBObject previous = BasicDBObjectBuilder
+				.start(STEP_EXECUTION_ID_KEY, new BasicDBObject("$in", stepExecutionIds))
+				.add(VERSION_STAMP_KEY, new BasicDBObject("$nin", versionStamps)).get();
+		Set<Object> previouslySpilled = new HashSet<Object>();
+		DBCursor cursor = getCollection().find(
+				BasicDBObjectBuilder.start(previous.toMap())
+						.add(GRIDFS_FILE_KEY, new BasicDBObject("$exists", true))
+						.get(), new BasicDBObject(STEP_EXECUTION_ID_KEY, 1));
+		while (cursor.hasNext()) {
+			previouslySpilled.add(cursor.next().get(STEP_EXECUTION_ID_KEY));
+		}
+		getCollection().remove(previous, WriteConcern.ACKNOWLEDGED);
+		for (DBObject stepContext : stepContexts) {
+			Long stepExecutionId = (Long) stepContext.get(STEP_EXECUTION_ID_KEY);
+			String snapshotKey = STEP_EXECUTION_ID_KEY + stepExecutionId;
+			if (stepContext.containsField(GRIDFS_FILE_KEY)) {
+				removeFiles(STEP_EXECUTION_ID_KEY, stepExecutionId,
+						stepContext.get(GRIDFS_FILE_KEY));
+				forget(snapshotKey);
+				continue;
+			}
+			if (previouslySpilled.contains(stepExecutionId)) {
+				removeFiles(STEP_EXECUTION_ID_KEY, stepExecutionId, null);
+			}
+			if (serializer == null) {
+				remember(snapshotKey, stepContext.get(VERSION_STAMP_KEY),
+						fingerprints(stepContext));
+			}
+		}
+	}
+
+	/**
+	 * A context as last written by this DAO.
+	 */
+	private static final class Snapshot {
+
+		private final Object versionStamp;
+
+		private final Map<String, Object> fingerprints;
+
+		private Snapshot(Object versionStamp, Map<String, Object> fingerprints) {
+			this.versionStamp = versionStamp;
+			this.fingerprints = fingerprints;
+		}
+	}
+
+	/**
+	 * LRU of contexts up to a total number of bytes.
+	 */
+	private static final class NearCache {
+
+		private final long maxSize;
+
+		private long size;
+
+		private final Map<String, NearCacheEntry> entries = new LinkedHashMap<String, NearCacheEntry>(16, 0.75f, true);
+
+		private NearCache(long maxSize) {
+			this.maxSize = maxSize;
+		}
+
+		private synchronized NearCacheEntry get(String key) {
+			return entries.get(key);
+		}
+
+		private synchronized void put(String key, NearCacheEntry entry) {
+			remove(key);
+			if (entry.bson.length > maxSize) {
+				return;
+			}
+			entries.put(key, entry);
+			size += entry.bson.length;
+			Iterator<NearCacheEntry> eldest = entries.values().iterator();
+			while (size > maxSize) {
+				size -= eldest.next().bson.length;
+				eldest.remove();
+			}
+		}
+
+		private synchronized void remove(String key) {
+			NearCacheEntry entry = entries.remove(key);
+			if (entry != null) {
+				size -= entry.bson.length;
+			}
+		}
+	}
+
+	private static final class NearCacheEntry {
+
+		private final Object versionStamp;
+
+		/** The document as read */
+		private final byte[] bson;
+
+		private NearCacheEntry(Object versionStamp, byte[] bson) {
+			this.versionStamp = versionStamp;
+			this.bson = bson;
+		}
 	}
 
-}
\ No newline at end of file
+}
@@ -5,8 +5,10 @@ import static com.mongodb.BasicDBObjectBuilder.start;
 
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import javax.annotation.PostConstruct;
@@ -30,6 +32,9 @@ import com.mongodb.BasicDBObjectBuilder;
 import com.mongodb.DBCollection;
 import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import com.mongodb.WriteConcern;
+import com.mongodb.WriteResult;
 
 /**
  * Uses MongoTemplate to perform CRUD on Springbatch's Job Execution data to
@@ -47,6 +52,30 @@ public class MongoJobExecutionDao extends AbstractMongoDao implements
 	private static final Logger LOG = LoggerFactory
 			.getLogger(MongoJobExecutionDao.class);
 
+	/**
+	 * True while the end time is null. An equality rather than a null test
+	 * on the end time, so that it can filter a partial index.
+	 */
+	public static final String RUNNING_KEY = "running";
+
+	private static final DBObject RUNNING = new BasicDBObject(RUNNING_KEY,
+			true);
+
+	/** Marks the completion of running executions saved without a job name */
+	private static final String RUNNING_MIGRATION = "JobExecution.running";
+
+	/** Only what {@link #synchronizeStatus(JobExecution)} reads */
+	private static final DBObject STATUS_FIELDS = BasicDBObjectBuilder
+			.start().add(VERSION_KEY, 1).add(STATUS_KEY, 1).add(ID_KEY, 0)
+			.get();
+
+	/**
+	 * Leaves out the steps stored by {@link MongoEmbeddedStepExecutionDao},
+	 * they are loaded by the step execution DAO.
+	 */
+	private static final DBObject JOB_EXECUTION_FIELDS = new BasicDBObject(
+			MongoEmbeddedStepExecutionDao.STEP_EXECUTIONS_KEY, 0);
+
 	private MongoTemplate mongoTemplate;
 
 	public void setMongoTemplate(MongoTemplate mongoTemplate) {
@@ -58,6 +87,84 @@ public class MongoJobExecutionDao extends AbstractMongoDao implements
 		getCollection().ensureIndex(
 				BasicDBObjectBuilder.start().add(JOB_EXECUTION_ID_KEY, 1)
 						.add(JOB_INSTANCE_ID_KEY, 1).get());
+		// Executions of an instance, newest first
+		getCollection().ensureIndex(
+				BasicDBObjectBuilder.start().add(JOB_INSTANCE_ID_KEY, 1)
+						.add(JOB_EXECUTION_ID_KEY, -1).get());
+		// Last execution of an instance, without an in-memory sort
+		getCollection().ensureIndex(
+				BasicDBObjectBuilder.start().add(JOB_INSTANCE_ID_KEY, 1)
+						.add(CREATE_TIME_KEY, -1).get());
+		// Covers the status polling of synchronizeStatus
+		getCollection().ensureIndex(
+				BasicDBObjectBuilder.start().add(JOB_EXECUTION_ID_KEY, 1)
+						.add(VERSION_KEY, 1).add(STATUS_KEY, 1).get());
+		ensureRunningIndex();
+		backfillJobNames();
+	}
+
+	/**
+	 * Running executions by job name. The index only holds running
+	 * executions, so it stays small whatever the size of the history; servers
+	 * without partial indexes (before 3.2) index every execution.
+	 */
+	private void ensureRunningIndex() {
+		try {
+			getCollection().ensureIndex(
+					BasicDBObjectBuilder.start().add(JOB_NAME_KEY, 1)
+							.add(JOB_EXECUTION_ID_KEY, -1).get(),
+					new BasicDBObject("partialFilterExpression", RUNNING));
+		} catch (MongoException e) {
+			LOG.warn("Could not create the index of running job executions: {}",
+					e.getMessage());
+		}
+	}
+
+	/**
+	 * Executions saved before the job name and running flag were stored on
+	 * them would not be found by {@link #findRunningJobExecutions(String)}.
+	 * Only running ones matter there, so only those are completed, once per
+	 * database as marked by a {@link #MIGRATIONS_COLLECTION_NAME} document.
+	 */
+	private void backfillJobNames() {
+		if (isMigrated(RUNNING_MIGRATION, mongoTemplate)) {
+			return;
+		}
+		DBObject legacyRunning = BasicDBObjectBuilder.start()
+				.add(END_TIME_KEY, null)
+				.add(RUNNING_KEY, new BasicDBObject("$exists", false)).get();
+		DBCursor cursor = getCollection().find(legacyRunning,
+				new BasicDBObject(JOB_INSTANCE_ID_KEY, 1));
+		Map<Long, String> jobNames = new HashMap<Long, String>();
+		DBCollection instances = mongoTemplate.getCollection(JobInstance.class
+				.getSimpleName());
+		while (cursor.hasNext()) {
+			Long jobInstanceId = (Long) cursor.next().get(JOB_INSTANCE_ID_KEY);
+			if (jobNames.containsKey(jobInstanceId)) {
+				continue;
+			}
+			DBObject instance = instances.findOne(
+					jobInstanceIdObj(jobInstanceId), new BasicDBObject(
+							JOB_NAME_KEY, 1));
+			String jobName = instance == null ? null : (String) instance
+					.get(JOB_NAME_KEY);
+			jobNames.put(jobInstanceId, jobName);
+			if (jobName != null) {
+				DBObject query = BasicDBObjectBuilder
+						.start(legacyRunning.toMap())
+						.add(JOB_INSTANCE_ID_KEY, jobInstanceId).get();
+				getCollection().update(
+						query,
+						new BasicDBObject("$set", BasicDBObjectBuilder.start()
+								.add(JOB_NAME_KEY, jobName)
+								.add(RUNNING_KEY, true).get()), false, true);
+			}
+		}
+		if (!jobNames.isEmpty()) {
+			LOG.info("Added the job name to running executions of {} job instances",
+					jobNames.size());
+		}
+		markMigrated(RUNNING_MIGRATION, mongoTemplate);
 	}
 
 	public void saveJobExecution(JobExecution jobExecution) {
@@ -75,11 +182,18 @@ public class MongoJobExecutionDao extends AbstractMongoDao implements
 	}
 
 	private DBObject toDbObjectWithoutVersion(JobExecution jobExecution) {
-		return start()
+		BasicDBObjectBuilder builder = start();
+		// Denormalized for findRunningJobExecutions
+		JobInstance jobInstance = jobExecution.getJobInstance();
+		if (jobInstance != null && jobInstance.getJobName() != null) {
+			builder.add(JOB_NAME_KEY, jobInstance.getJobName());
+		}
+		return builder
 				.add(JOB_EXECUTION_ID_KEY, jobExecution.getId())
 				.add(JOB_INSTANCE_ID_KEY, jobExecution.getJobId())
 				.add(START_TIME_KEY, jobExecution.getStartTime())
 				.add(END_TIME_KEY, jobExecution.getEndTime())
+				.add(RUNNING_KEY, jobExecution.getEndTime() == null)
 				.add(STATUS_KEY, jobExecution.getStatus().toString())
 				.add(EXIT_CODE_KEY, jobExecution.getExitStatus().getExitCode())
 				.add(EXIT_MESSAGE_KEY,
@@ -99,7 +213,13 @@ public class MongoJobExecutionDao extends AbstractMongoDao implements
 				"JobExecution create time cannot be null");
 	}
 
-	public synchronized void updateJobExecution(JobExecution jobExecution) {
+	/**
+	 * Single acknowledged update guarded by the version; only a failed update
+	 * reads the document again to tell a missing execution from a version
+	 * conflict. No local lock is needed, concurrent updates of the same
+	 * execution are arbitrated by the version predicate.
+	 */
+	public void updateJobExecution(JobExecution jobExecution) {
 		validateJobExecution(jobExecution);
 
 		Long jobExecutionId = jobExecution.getId();
@@ -113,31 +233,27 @@ public class MongoJobExecutionDao extends AbstractMongoDao implements
 
 		Integer version = jobExecution.getVersion() + 1;
 
-		if (getCollection().findOne(jobExecutionIdObj(jobExecutionId)) == null) {
-			throw new NoSuchObjectException("Invalid JobExecution, ID "
-					+ jobExecutionId + " not found.");
-		}
-
 		DBObject object = toDbObjectWithoutVersion(jobExecution);
 		object.put(VERSION_KEY, version);
-		getCollection().update(
+		// $set leaves fields not mapped here untouched
+		WriteResult result = getCollection().update(
 				start().add(JOB_EXECUTION_ID_KEY, jobExecutionId)
 						.add(VERSION_KEY, jobExecution.getVersion()).get(),
-				object);
+				new BasicDBObject("$set", object), false, false,
+				WriteConcern.ACKNOWLEDGED);
 
-		// Avoid concurrent modifications...
-		DBObject lastError = mongoTemplate.getDb().getLastError();
-		if (!((Boolean) lastError.get(UPDATED_EXISTING_STATUS))) {
-			LOG.error("Update returned status {}", lastError);
+		if (result.getN() == 0) {
 			DBObject existingJobExecution = getCollection().findOne(
 					jobExecutionIdObj(jobExecutionId),
 					new BasicDBObject(VERSION_KEY, 1));
 			if (existingJobExecution == null) {
-				throw new IllegalArgumentException(
-						"Can't update this jobExecution, it was never saved.");
+				throw new NoSuchObjectException("Invalid JobExecution, ID "
+						+ jobExecutionId + " not found.");
 			}
 			Integer curentVersion = ((Integer) existingJobExecution
 					.get(VERSION_KEY));
+			LOG.error("Update of job execution id={} with version {} failed, current version is {}",
+					new Object[] { jobExecutionId, jobExecution.getVersion(), curentVersion });
 			throw new OptimisticLockingFailureException(
 					"Attempt to update job execution id=" + jobExecutionId
 							+ " with wrong version ("
@@ -152,12 +268,64 @@ public class MongoJobExecutionDao extends AbstractMongoDao implements
 		Assert.notNull(jobInstance, "Job cannot be null.");
 		Long id = jobInstance.getId();
 		Assert.notNull(id, "Job Id cannot be null.");
-		DBCursor dbCursor = getCollection().find(jobInstanceIdObj(id)).sort(
-				new BasicDBObject(JOB_EXECUTION_ID_KEY, -1));
+		return mapJobExecutions(jobInstance, getCollection().find(jobInstanceIdObj(id), JOB_EXECUTION_FIELDS).sort(
+				new BasicDBObject(JOB_EXECUTION_ID_KEY, -1)));
+	}
+
+	/**
+	 * Keyset variant of {@link #findJobExecutions(JobInstance)}, newest first,
+	 * using the (jobInstanceId, jobExecutionId desc) index.
+	 * 
+	 * @param lastJobExecutionId last id of the previous page, null for the
+	 *            first page
+	 */
+	public List<JobExecution> findJobExecutionsAfter(JobInstance jobInstance,
+			Long lastJobExecutionId, int count) {
+		Assert.notNull(jobInstance, "Job cannot be null.");
+		Assert.notNull(jobInstance.getId(), "Job Id cannot be null.");
+		BasicDBObject query = jobInstanceIdObj(jobInstance.getId());
+		if (lastJobExecutionId != null) {
+			query.put(JOB_EXECUTION_ID_KEY, new BasicDBObject("$lt",
+					lastJobExecutionId));
+		}
+		return mapJobExecutions(jobInstance, getCollection().find(query, JOB_EXECUTION_FIELDS)
+				.sort(jobExecutionIdObj(-1L)).limit(count));
+	}
+
+	/**
+	 * @param continuationToken token of the previous page, null for the first
+	 *            page
+	 */
+	public KeysetPage<JobExecution> findJobExecutionPage(
+			JobInstance jobInstance, String continuationToken, int count) {
+		Assert.isTrue(count > 0, "Page size must be positive.");
+		List<JobExecution> jobExecutions = findJobExecutionsAfter(jobInstance,
+				KeysetPage.parseContinuationToken(continuationToken), count + 1);
+		if (jobExecutions.size() <= count) {
+			return new KeysetPage<JobExecution>(jobExecutions, null);
+		}
+		jobExecutions = jobExecutions.subList(0, count);
+		return new KeysetPage<JobExecution>(jobExecutions, jobExecutions.get(
+				count - 1).getId());
+	}
+
+	/**
+	 * All executions belong to the same instance, so its parameters are loaded
+	 * once (and only if there is at least one execution).
+	 */
+	private List<JobExecution> mapJobExecutions(JobInstance jobInstance,
+			DBCursor dbCursor) {
 		List<JobExecution> result = new ArrayList<JobExecution>();
+		JobParameters jobParameters = null;
+		boolean parametersLoaded = false;
 		while (dbCursor.hasNext()) {
 			DBObject dbObject = dbCursor.next();
-			result.add(mapJobExecution(jobInstance, dbObject));
+			if (!parametersLoaded) {
+				jobParameters = getJobParameters(jobInstance.getId(),
+						mongoTemplate);
+				parametersLoaded = true;
+			}
+			result.add(mapJobExecution(jobInstance, jobParameters, dbObject));
 		}
 		return result;
 	}
@@ -165,7 +333,7 @@ public class MongoJobExecutionDao extends AbstractMongoDao implements
 	public JobExecution getLastJobExecution(JobInstance jobInstance) {
 		Long id = jobInstance.getId();
 
-		DBCursor dbCursor = getCollection().find(jobInstanceIdObj(id))
+		DBCursor dbCursor = getCollection().find(jobInstanceIdObj(id), JOB_EXECUTION_FIELDS)
 				.sort(new BasicDBObject(CREATE_TIME_KEY, -1)).limit(1);
 		if (!dbCursor.hasNext()) {
 			return null;
@@ -175,26 +343,20 @@ public class MongoJobExecutionDao extends AbstractMongoDao implements
 				throw new IllegalStateException(
 						"There must be at most one latest job execution");
 			}
-			return mapJobExecution(jobInstance, singleResult);
+			return mapJobExecution(jobInstance,
+					getJobParameters(jobInstance.getId(), mongoTemplate),
+					singleResult);
 		}
 	}
 
+	/**
+	 * Single query on the partial index of running executions, using the job
+	 * name stored on each execution.
+	 */
 	public Set<JobExecution> findRunningJobExecutions(String jobName) {
-		DBCursor instancesCursor = mongoTemplate.getCollection(
-				JobInstance.class.getSimpleName()).find(
-				new BasicDBObject(MongoJobInstanceDao.JOB_NAME_KEY, jobName),
-				jobInstanceIdObj(1L));
-		List<Long> ids = new ArrayList<Long>();
-		while (instancesCursor.hasNext()) {
-			ids.add((Long) instancesCursor.next().get(JOB_INSTANCE_ID_KEY));
-		}
-
 		DBCursor dbCursor = getCollection().find(
-				BasicDBObjectBuilder
-						.start()
-						.add(JOB_INSTANCE_ID_KEY,
-								new BasicDBObject("$in", ids.toArray()))
-						.add(END_TIME_KEY, null).get()).sort(
+				BasicDBObjectBuilder.start(RUNNING.toMap())
+						.add(JOB_NAME_KEY, jobName).get(), JOB_EXECUTION_FIELDS).sort(
 				jobExecutionIdObj(-1L));
 		Set<JobExecution> result = new HashSet<JobExecution>();
 		while (dbCursor.hasNext()) {
@@ -205,20 +367,24 @@ public class MongoJobExecutionDao extends AbstractMongoDao implements
 
 	public JobExecution getJobExecution(Long executionId) {
 		return mapJobExecution(getCollection().findOne(
-				jobExecutionIdObj(executionId)));
+				jobExecutionIdObj(executionId), JOB_EXECUTION_FIELDS));
 	}
 
+	/**
+	 * Called at every chunk boundary, so only the version and status are read,
+	 * from the (jobExecutionId, version, status) index.
+	 */
 	public void synchronizeStatus(JobExecution jobExecution) {
 		Long id = jobExecution.getId();
 		DBObject jobExecutionObject = getCollection().findOne(
-				jobExecutionIdObj(id));
+				jobExecutionIdObj(id), STATUS_FIELDS);
 		int currentVersion = jobExecutionObject != null ? ((Integer) jobExecutionObject
 				.get(VERSION_KEY)) : 0;
 		if (currentVersion != jobExecution.getVersion()) {
 			if (jobExecutionObject == null) {
 				save(jobExecution, id);
 				jobExecutionObject = getCollection().findOne(
-						jobExecutionIdObj(id));
+						jobExecutionIdObj(id), STATUS_FIELDS);
 			}
 			String status = (String) jobExecutionObject.get(STATUS_KEY);
 			jobExecution.upgradeStatus(BatchStatus.valueOf(status));
@@ -233,11 +399,15 @@ public class MongoJobExecutionDao extends AbstractMongoDao implements
 	}
 
 	private JobExecution mapJobExecution(DBObject dbObject) {
-		return mapJobExecution(null, dbObject);
+		return mapJobExecution(null, null, dbObject);
 	}
 
+	/**
+	 * @param jobParameters parameters of the instance, resolved by the caller
+	 *            so that they are loaded once per listing
+	 */
 	private JobExecution mapJobExecution(JobInstance jobInstance,
-			DBObject dbObject) {
+			JobParameters jobParameters, DBObject dbObject) {
 		if (dbObject == null) {
 			return null;
 		}
@@ -247,7 +417,6 @@ public class MongoJobExecutionDao extends AbstractMongoDao implements
 		if (jobInstance == null) {
 			jobExecution = new JobExecution(id);
 		} else {
-			JobParameters jobParameters = getJobParameters(jobInstance.getId(), mongoTemplate);
 			jobExecution = new JobExecution(jobInstance, id, jobParameters,
 					null);
 		}
@@ -3,18 +3,25 @@ package org.springframework.batch.mongodb;
 
 import static com.mongodb.BasicDBObjectBuilder.start;
 
-import java.io.UnsupportedEncodingException;
-import java.math.BigInteger;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
 
 import javax.annotation.PostConstruct;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.batch.core.JobExecution;
 import org.springframework.batch.core.JobInstance;
 import org.springframework.batch.core.JobParameter;
@@ -29,6 +36,8 @@ import com.mongodb.BasicDBObject;
 import com.mongodb.DBCollection;
 import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import com.mongodb.WriteConcern;
 
 /**
  * Uses MongoTemplate to perform CRUD on Springbatch's Job Instance Data to
@@ -40,25 +49,170 @@ import com.mongodb.DBObject;
 @Repository
 public class MongoJobInstanceDao extends AbstractMongoDao implements JobInstanceDao {
 
+    private static final Logger LOG = LoggerFactory.getLogger(MongoJobInstanceDao.class);
+
+    /**
+     * Catalog of job names (as _id) with their instance count and last launch
+     * time, maintained by {@link #createJobInstance}.
+     */
+    public static final String JOB_NAMES_COLLECTION_NAME = "JobNames";
+    public static final String INSTANCE_COUNT_KEY = "instanceCount";
+    public static final String LAST_LAUNCH_TIME_KEY = "lastLaunchTime";
+
+    /**
+     * The only fields needed to map a JobInstance
+     */
+    private static final DBObject JOB_INSTANCE_FIELDS = start().add(JOB_INSTANCE_ID_KEY, 1)
+            .add(JOB_NAME_KEY, 1).add(ID_KEY, 0).get();
+
 	 private MongoTemplate mongoTemplate;
+
+	/**
+	 * Optional LRU cache of (jobName, jobKey) to JobInstance, JobInstances never
+	 * change once created. Disabled when null.
+	 */
+	private Map<String, JobInstance> jobInstanceCache;
+
+	/**
+	 * Number of job keys per job name the Bloom filters are sized for, 0
+	 * disables them.
+	 */
+	private volatile int jobKeyFilterSize;
+
+	private final ConcurrentMap<String, JobKeyBloomFilter> jobKeyFilters = new ConcurrentHashMap<String, JobKeyBloomFilter>();
+
+	private final AtomicLong cacheHitCount = new AtomicLong();
+
+	private final AtomicLong cacheMissCount = new AtomicLong();
+
+	private final AtomicLong filterNegativeCount = new AtomicLong();
+
+	private volatile boolean jobNamesCatalogChecked;
+
+	/**
+	 * Whether the unique (jobName, jobKey) index exists, null until checked
+	 */
+	private volatile Boolean jobKeyIndexUnique;
 	 
 	 public void setMongoTemplate(MongoTemplate mongoTemplate){
 		this.mongoTemplate = mongoTemplate; 
 	 }
+
+	/**
+	 * Enables an in-memory LRU cache of up to <code>size</code> JobInstances
+	 * looked up by name and parameters. 0 (the default) disables it.
+	 */
+	public void setJobInstanceCacheSize(final int size) {
+		Assert.isTrue(size >= 0, "Cache size must not be negative.");
+		if (size == 0) {
+			jobInstanceCache = null;
+			return;
+		}
+		jobInstanceCache = Collections.synchronizedMap(new LinkedHashMap<String, JobInstance>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, JobInstance> eldest) {
+				return size() > size;
+			}
+		});
+	}
+
+	/**
+	 * Enables a Bloom filter per job name, sized for <code>expectedJobKeys</code>
+	 * parameter sets, that answers lookups of new parameter sets without a
+	 * round trip. A filter is seeded from the collection on the first lookup
+	 * of its job name and is then only fed by {@link #createJobInstance}, so it
+	 * should only be enabled when all instances of a job are created through
+	 * this DAO. 0 (the default) disables the filters.
+	 */
+	public void setJobKeyFilterSize(int expectedJobKeys) {
+		Assert.isTrue(expectedJobKeys >= 0, "Filter size must not be negative.");
+		this.jobKeyFilterSize = expectedJobKeys;
+		jobKeyFilters.clear();
+	}
+
+	/**
+	 * @return lookups by name and parameters answered by the JobInstance cache
+	 */
+	public long getCacheHitCount() {
+		return cacheHitCount.get();
+	}
+
+	/**
+	 * @return lookups by name and parameters not answered by the JobInstance cache
+	 */
+	public long getCacheMissCount() {
+		return cacheMissCount.get();
+	}
+
+	/**
+	 * @return lookups answered as "does not exist" by a Bloom filter
+	 */
+	public long getFilterNegativeCount() {
+		return filterNegativeCount.get();
+	}
 	 
 	 
     @PostConstruct
     public void init() {
         getCollection().ensureIndex(jobInstanceIdObj(1L));
+        // Listing and counting by name, newest first
+        getCollection().ensureIndex(start().add(JOB_NAME_KEY, 1).add(JOB_INSTANCE_ID_KEY, -1).get());
+        checkJobKeyIndex();
+        ensureJobNamesCatalog();
+    }
+
+    /**
+     * Tries to create the unique (jobName, jobKey) index again, e.g. after
+     * removing duplicate instances. {@link #init()} tries it once; while it
+     * is missing {@link #createJobInstance} looks up duplicates before
+     * inserting.
+     * 
+     * @return whether the index exists
+     */
+    public boolean checkJobKeyIndex() {
+        boolean unique = createJobKeyIndex();
+        jobKeyIndexUnique = unique;
+        return unique;
+    }
+
+    /**
+     * Unique (jobName, jobKey) index, used for lookups and to reject duplicate
+     * instances on insert.
+     * 
+     * @return false if the index could not be created, e.g. because of
+     *         existing duplicates
+     */
+    protected boolean createJobKeyIndex() {
+        try {
+            getCollection().ensureIndex(start().add(JOB_NAME_KEY, 1).add(JOB_KEY_KEY, 1).get(),
+                    new BasicDBObject("unique", true));
+            return true;
+        } catch (MongoException e) {
+            LOG.warn("Unique index on {} and {} could not be created: {}",
+                    new Object[] {JOB_NAME_KEY, JOB_KEY_KEY, e.getMessage()});
+            return false;
+        }
     }
 
     public JobInstance createJobInstance(String jobName, final JobParameters jobParameters) {
         Assert.notNull(jobName, "Job name must not be null.");
         Assert.notNull(jobParameters, "JobParameters must not be null.");
 
-        Assert.state(getJobInstance(jobName, jobParameters) == null,
-                "JobInstance must not already exist");
+        // Legacy instances are counted before this one is added
+        ensureJobNamesCatalog();
+        Boolean unique = jobKeyIndexUnique;
+        if (unique == null) {
+            unique = checkJobKeyIndex();
+        }
+        if (!unique) {
+            // Without the unique index duplicates have to be looked up first
+            Assert.state(getJobInstance(jobName, jobParameters) == null,
+                    "JobInstance must not already exist");
+        }
 
+        String jobKey = createJobKey(jobParameters);
         Long jobId = getNextId(JobInstance.class.getSimpleName(), mongoTemplate);
 
         JobInstance jobInstance = new JobInstance(jobId, jobName);
@@ -68,14 +222,33 @@ public class MongoJobInstanceDao extends AbstractMongoDao implements JobInstance
         Map<String, JobParameter> jobParams = jobParameters.getParameters();
         Map<String, Object> paramMap = new HashMap<String, Object>(jobParams.size());
         for (Map.Entry<String, JobParameter> entry : jobParams.entrySet()) {
-            paramMap.put(entry.getKey().replaceAll(DOT_STRING, DOT_ESCAPE_STRING), entry.getValue().getValue());
+            paramMap.put(escapeDots(entry.getKey()), entry.getValue().getValue());
         }
-        getCollection().save(start()
-                .add(JOB_INSTANCE_ID_KEY, jobId)
-                .add(JOB_NAME_KEY, jobName)
-                .add(JOB_KEY_KEY, createJobKey(jobParameters))
-                .add(VERSION_KEY, jobInstance.getVersion())
-                .add(JOB_PARAMETERS_KEY, new BasicDBObject(paramMap)).get());
+        try {
+            getCollection().insert(start()
+                    .add(JOB_INSTANCE_ID_KEY, jobId)
+                    .add(JOB_NAME_KEY, jobName)
+                    .add(JOB_KEY_KEY, jobKey)
+                    .add(VERSION_KEY, jobInstance.getVersion())
+                    .add(JOB_PARAMETERS_KEY, new BasicDBObject(paramMap)).get(),
+                    WriteConcern.ACKNOWLEDGED);
+        } catch (MongoException.DuplicateKey e) {
+            // Created elsewhere, the filter of this job may be stale
+            jobKeyFilters.remove(jobName);
+            throw new IllegalStateException("JobInstance must not already exist", e);
+        }
+        // Also while it is seeded: the scan may have passed this instance
+        JobKeyBloomFilter filter = jobKeyFilters.get(jobName);
+        if (filter != null) {
+            filter.put(jobKey);
+        }
+        if (jobInstanceCache != null) {
+            jobInstanceCache.put(cacheKey(jobName, jobKey), jobInstance);
+        }
+        getJobNamesCollection().update(new BasicDBObject(ID_KEY, jobName),
+                start().add("$inc", new BasicDBObject(INSTANCE_COUNT_KEY, 1L))
+                        .add("$set", new BasicDBObject(LAST_LAUNCH_TIME_KEY, new Date())).get(),
+                true, false);
         return jobInstance;
     }
 
@@ -85,57 +258,312 @@ public class MongoJobInstanceDao extends AbstractMongoDao implements JobInstance
 
         String jobKey = createJobKey(jobParameters);
 
-        return mapJobInstance(getCollection().findOne(start()
+        Map<String, JobInstance> cache = jobInstanceCache;
+        if (cache != null) {
+            JobInstance cached = cache.get(cacheKey(jobName, jobKey));
+            if (cached != null) {
+                cacheHitCount.incrementAndGet();
+                return cached;
+            }
+            cacheMissCount.incrementAndGet();
+        }
+
+        JobKeyBloomFilter filter = getJobKeyFilter(jobName);
+        if (filter != null && !filter.mightContain(jobKey)) {
+            filterNegativeCount.incrementAndGet();
+            return null;
+        }
+
+        JobInstance jobInstance = mapJobInstance(getCollection().findOne(start()
                 .add(JOB_NAME_KEY, jobName)
-                .add(JOB_KEY_KEY, jobKey).get()), jobParameters);
+                .add(JOB_KEY_KEY, jobKey).get(), JOB_INSTANCE_FIELDS));
+        if (cache != null && jobInstance != null) {
+            cache.put(cacheKey(jobName, jobKey), jobInstance);
+        }
+        return jobInstance;
+    }
+
+    private static String cacheKey(String jobName, String jobKey) {
+        // job keys have a fixed length, so the concatenation is unambiguous
+        return jobKey + jobName;
+    }
+
+    /**
+     * The filter of a job is published before it is seeded from the
+     * collection, without a lock: instances created meanwhile are added by
+     * {@link #createJobInstance}, lookups of other threads go to the
+     * collection until the seeding is done.
+     * 
+     * @return the seeded Bloom filter of the job, or null if the filters are
+     *         disabled or it is still being seeded
+     */
+    private JobKeyBloomFilter getJobKeyFilter(String jobName) {
+        int size = jobKeyFilterSize;
+        if (size == 0) {
+            return null;
+        }
+        JobKeyBloomFilter filter = jobKeyFilters.get(jobName);
+        if (filter == null) {
+            filter = new JobKeyBloomFilter(size);
+            if (jobKeyFilters.putIfAbsent(jobName, filter) != null) {
+                return null;
+            }
+            try {
+                // Covered by the (jobName, jobKey) index
+                DBCursor keys = getCollection().find(new BasicDBObject(JOB_NAME_KEY, jobName),
+                        start().add(JOB_KEY_KEY, 1).add(ID_KEY, 0).get());
+                while (keys.hasNext()) {
+                    filter.put((String) keys.next().get(JOB_KEY_KEY));
+                }
+            } catch (RuntimeException e) {
+                jobKeyFilters.remove(jobName, filter);
+                throw e;
+            }
+            filter.markSeeded();
+            // Dropped meanwhile if found stale
+            return jobKeyFilters.get(jobName) == filter ? filter : null;
+        }
+        return filter.isSeeded() ? filter : null;
     }
 
     public JobInstance getJobInstance(Long instanceId) {
-        return mapJobInstance(getCollection().findOne(jobInstanceIdObj(instanceId)));
+        return mapJobInstance(getCollection().findOne(jobInstanceIdObj(instanceId), JOB_INSTANCE_FIELDS));
     }
 
     public JobInstance getJobInstance(JobExecution jobExecution) {
         DBObject instanceId = mongoTemplate.getCollection(JobExecution.class.getSimpleName()).findOne(jobExecutionIdObj(jobExecution.getId()), jobInstanceIdObj(1L));
         removeSystemFields(instanceId);
-        return mapJobInstance(getCollection().findOne(instanceId));
+        return mapJobInstance(getCollection().findOne(instanceId, JOB_INSTANCE_FIELDS));
     }
 
     public List<JobInstance> getJobInstances(String jobName, int start, int count) {
-        return mapJobInstances(getCollection().find(new BasicDBObject(JOB_NAME_KEY, jobName)).sort(jobInstanceIdObj(-1L)).skip(start).limit(count));
+        return mapJobInstances(getCollection().find(new BasicDBObject(JOB_NAME_KEY, jobName), JOB_INSTANCE_FIELDS)
+                .sort(jobInstanceIdObj(-1L)).skip(start).limit(count));
+    }
+
+    /**
+     * Keyset variant of {@link #getJobInstances(String, int, int)}: seeks the
+     * (jobName, jobInstanceId desc) index instead of skipping, so deep pages
+     * cost the same as the first one.
+     * 
+     * @param lastJobInstanceId last id of the previous page, null for the
+     *            first page
+     */
+    public List<JobInstance> getJobInstancesAfter(String jobName, Long lastJobInstanceId, int count) {
+        BasicDBObject query = new BasicDBObject(JOB_NAME_KEY, jobName);
+        if (lastJobInstanceId != null) {
+            query.put(JOB_INSTANCE_ID_KEY, new BasicDBObject("$lt", lastJobInstanceId));
+        }
+        return mapJobInstances(getCollection().find(query, JOB_INSTANCE_FIELDS)
+                .sort(jobInstanceIdObj(-1L)).limit(count));
+    }
+
+    /**
+     * @param continuationToken token of the previous page, null for the first
+     *            page
+     */
+    public KeysetPage<JobInstance> getJobInstancePage(String jobName, String continuationToken, int count) {
+        Assert.isTrue(count > 0, "Page size must be positive.");
+        List<JobInstance> jobInstances = getJobInstancesAfter(jobName,
+                KeysetPage.parseContinuationToken(continuationToken), count + 1);
+        if (jobInstances.size() <= count) {
+            return new KeysetPage<JobInstance>(jobInstances, null);
+        }
+        jobInstances = jobInstances.subList(0, count);
+        return new KeysetPage<JobInstance>(jobInstances, jobInstances.get(count - 1).getId());
     }
 
-    @SuppressWarnings({"unchecked"})
+    /**
+     * Loads the parameters of several JobInstances, e.g. of a page of
+     * {@link #getJobInstances(String, int, int)}, in a single query.
+     * 
+     * @return JobParameters by JobInstance id
+     */
+    public Map<Long, JobParameters> getJobParameters(Collection<Long> jobInstanceIds) {
+        Assert.notNull(jobInstanceIds, "JobInstance ids must not be null.");
+        return getJobParameters(jobInstanceIds, mongoTemplate);
+    }
+
+    /**
+     * Read from the {@link #JOB_NAMES_COLLECTION_NAME} catalog, sorted by the
+     * _id index, so it does not depend on the number of instances.
+     */
     public List<String> getJobNames() {
-        List results = getCollection().distinct(JOB_NAME_KEY);
-        Collections.sort(results);
+        ensureJobNamesCatalog();
+        DBCursor cursor = getJobNamesCollection().find(new BasicDBObject(), new BasicDBObject(ID_KEY, 1))
+                .sort(new BasicDBObject(ID_KEY, 1));
+        List<String> results = new ArrayList<String>();
+        while (cursor.hasNext()) {
+            results.add((String) cursor.next().get(ID_KEY));
+        }
         return results;
     }
 
+    /**
+     * @return time the last instance of the job was created by this DAO, null
+     *         if unknown
+     */
+    public Date getLastLaunchTime(String jobName) {
+        ensureJobNamesCatalog();
+        DBObject entry = getJobNamesCollection().findOne(new BasicDBObject(ID_KEY, jobName),
+                new BasicDBObject(LAST_LAUNCH_TIME_KEY, 1));
+        return entry == null ? null : (Date) entry.get(LAST_LAUNCH_TIME_KEY);
+    }
+
+    /**
+     * Databases written before the catalog existed have instances but no
+     * catalog entries. The catalog is then built once per database, marked by
+     * a {@link #MIGRATIONS_COLLECTION_NAME} document, from a distinct and
+     * indexed counts per name (the aggregation helper of the 2.11 driver is
+     * not supported by recent servers). Called by {@link #init()} and before
+     * the catalog is first used; instances created concurrently by other
+     * nodes during that rebuild may be miscounted.
+     */
+    private void ensureJobNamesCatalog() {
+        if (jobNamesCatalogChecked) {
+            return;
+        }
+        if (!isMigrated(JOB_NAMES_COLLECTION_NAME, mongoTemplate)) {
+            // distinct fails on servers where the collection does not exist yet
+            if (getCollection().findOne() != null) {
+                LOG.info("Building the {} catalog from existing job instances", JOB_NAMES_COLLECTION_NAME);
+                DBCollection jobNames = getJobNamesCollection();
+                for (Object jobName : getCollection().distinct(JOB_NAME_KEY)) {
+                    long count = getCollection().count(new BasicDBObject(JOB_NAME_KEY, jobName));
+                    jobNames.update(new BasicDBObject(ID_KEY, jobName),
+                            new BasicDBObject("$set", new BasicDBObject(INSTANCE_COUNT_KEY, count)), true, false);
+                }
+            }
+            markMigrated(JOB_NAMES_COLLECTION_NAME, mongoTemplate);
+        }
+        jobNamesCatalogChecked = true;
+    }
+
+    private DBCollection getJobNamesCollection() {
+        return mongoTemplate.getCollection(JOB_NAMES_COLLECTION_NAME);
+    }
+
+    /**
+     * MD5 of "key=value;" for all parameters sorted by key, as lower case hex.
+     * The digest and encoding buffer are reused per thread and the string is
+     * encoded to UTF-8 straight into the digest.
+     */
     protected String createJobKey(JobParameters jobParameters) {
 
         Map<String, JobParameter> props = jobParameters.getParameters();
-        StringBuilder stringBuilder = new StringBuilder();
         List<String> keys = new ArrayList<String>(props.keySet());
         Collections.sort(keys);
+
+        JobKeyDigest digest = JOB_KEY_DIGEST.get();
+        digest.reset();
         for (String key : keys) {
-            stringBuilder.append(key).append("=").append(props.get(key).toString()).append(";");
+            digest.update(key);
+            digest.update('=');
+            digest.update(props.get(key).toString());
+            digest.update(';');
         }
+        return digest.toHex();
+    }
 
-        MessageDigest digest;
-        try {
-            digest = MessageDigest.getInstance("MD5");
-        } catch (NoSuchAlgorithmException e) {
-            throw new IllegalStateException(
-                    "MD5 algorithm not available.  Fatal (should be in the JDK).");
+    private static final ThreadLocal<JobKeyDigest> JOB_KEY_DIGEST = new ThreadLocal<JobKeyDigest>() {
+        @Override
+        protected JobKeyDigest initialValue() {
+            return new JobKeyDigest();
         }
+    };
 
-        try {
-            byte[] bytes = digest.digest(stringBuilder.toString().getBytes(
-                    "UTF-8"));
-            return String.format("%032x", new BigInteger(1, bytes));
-        } catch (UnsupportedEncodingException e) {
-            throw new IllegalStateException(
-                    "UTF-8 encoding not available.  Fatal (should be in the JDK).");
+    /**
+     * Reusable MD5 digest fed with UTF-8 bytes through a small buffer
+     */
+    private static final class JobKeyDigest {
+
+        private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+        private final MessageDigest digest;
+
+        private final byte[] buffer = new byte[256];
+
+        private final char[] hex = new char[32];
+
+        private int position;
+
+        private JobKeyDigest() {
+            try {
+                digest = MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(
+                        "MD5 algorithm not available.  Fatal (should be in the JDK).");
+            }
+        }
+
+        /**
+         * Drops any state left by a previous key that failed half way
+         */
+        private void reset() {
+            digest.reset();
+            position = 0;
+        }
+
+        /**
+         * Same bytes as String.getBytes("UTF-8"), including '?' for unpaired
+         * surrogates.
+         */
+        private void update(String value) {
+            int length = value.length();
+            for (int i = 0; i < length; i++) {
+                char c = value.charAt(i);
+                if (c < 0x80) {
+                    update(c);
+                } else if (c < 0x800) {
+                    ensureCapacity(2);
+                    buffer[position++] = (byte) (0xc0 | (c >> 6));
+                    buffer[position++] = (byte) (0x80 | (c & 0x3f));
+                } else if (c < Character.MIN_SURROGATE || c > Character.MAX_SURROGATE) {
+                    ensureCapacity(3);
+                    buffer[position++] = (byte) (0xe0 | (c >> 12));
+                    buffer[position++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                    buffer[position++] = (byte) (0x80 | (c & 0x3f));
+                } else if (Character.isHighSurrogate(c) && i + 1 < length
+                        && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                    ensureCapacity(4);
+                    buffer[position++] = (byte) (0xf0 | (codePoint >> 18));
+                    buffer[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                    buffer[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                    buffer[position++] = (byte) (0x80 | (codePoint & 0x3f));
+                } else {
+                    update('?');
+                }
+            }
+        }
+
+        /**
+         * @param c an ASCII character
+         */
+        private void update(char c) {
+            ensureCapacity(1);
+            buffer[position++] = (byte) c;
+        }
+
+        private void ensureCapacity(int bytes) {
+            if (position + bytes > buffer.length) {
+                digest.update(buffer, 0, position);
+                position = 0;
+            }
+        }
+
+        /**
+         * Completes the digest and resets it for the next key
+         */
+        private String toHex() {
+            digest.update(buffer, 0, position);
+            position = 0;
+            byte[] bytes = digest.digest();
+            for (int i = 0; i < bytes.length; i++) {
+                hex[2 * i] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+                hex[2 * i + 1] = HEX_DIGITS[bytes[i] & 0xf];
+            }
+            return new String(hex);
         }
     }
 
@@ -152,18 +580,15 @@ public class MongoJobInstanceDao extends AbstractMongoDao implements JobInstance
         return results;
     }
 
+    /**
+     * Maps the document at hand only, JobInstances do not hold their
+     * parameters. Use {@link #getJobParameters(Collection)} to load the
+     * parameters of a listing.
+     */
     private JobInstance mapJobInstance(DBObject dbObject) {
-        return mapJobInstance(dbObject, null);
-    }
-
-    private JobInstance mapJobInstance(DBObject dbObject, JobParameters jobParameters) {
         JobInstance jobInstance = null;
         if (dbObject != null) {
             Long id = (Long) dbObject.get(JOB_INSTANCE_ID_KEY);
-            if (jobParameters == null) {
-                jobParameters = getJobParameters(id, mongoTemplate);
-            }
-            
             jobInstance = new JobInstance(id, (String) dbObject.get(JOB_NAME_KEY)); // should always be at version=0 because they never get updated
             jobInstance.incrementVersion();
         }
@@ -171,44 +596,60 @@ public class MongoJobInstanceDao extends AbstractMongoDao implements JobInstance
     }
 
 
+	/**
+	 * Same contract as the JDBC implementation: <code>jobName</code> may
+	 * contain '*' wildcards, results are sorted by descending id and paged on
+	 * the server.
+	 */
 	@Override
 	public List<JobInstance> findJobInstancesByName(String jobName, int start,
 			int count) {
-		List<JobInstance> result = new ArrayList<JobInstance>();
-		List<JobInstance> jobInstances = mapJobInstances(getCollection().find(
-				new BasicDBObject(JOB_NAME_KEY, jobName)).sort(
-				jobInstanceIdObj(-1L)));
-		for (JobInstance instanceEntry : jobInstances) {
-			String key = instanceEntry.getJobName();
-			String curJobName = key.substring(0, key.lastIndexOf("|"));
-
-			if(curJobName.equals(jobName)) {
-				result.add(instanceEntry);
+		Object nameCriteria = jobName;
+		if (jobName.indexOf('*') >= 0) {
+			nameCriteria = Pattern.compile(toRegex(jobName));
+		}
+		return mapJobInstances(getCollection()
+				.find(new BasicDBObject(JOB_NAME_KEY, nameCriteria),
+						JOB_INSTANCE_FIELDS).sort(jobInstanceIdObj(-1L))
+				.skip(start).limit(count));
+	}
+
+	/**
+	 * Anchored regular expression for a '*' wildcard pattern. Literal
+	 * characters are escaped one by one (rather than quoted with \Q..\E) so
+	 * that a literal prefix can still use the jobName index.
+	 */
+	private static String toRegex(String wildcardPattern) {
+		StringBuilder regex = new StringBuilder(wildcardPattern.length() + 8).append('^');
+		for (int i = 0; i < wildcardPattern.length(); i++) {
+			char c = wildcardPattern.charAt(i);
+			if (c == '*') {
+				regex.append(".*");
+			} else {
+				if ("\\.[]{}()<>+-=!?^$|".indexOf(c) >= 0) {
+					regex.append('\\');
+				}
+				regex.append(c);
 			}
 		}
-		return result;
+		return regex.append('$').toString();
 	}
 
+	/**
+	 * Read from the {@link #JOB_NAMES_COLLECTION_NAME} catalog
+	 */
 	@Override
 	public int getJobInstanceCount(String jobName) throws NoSuchJobException {
 
-		int count = 0;
-		List<JobInstance> jobInstances = mapJobInstances(getCollection().find(
-				new BasicDBObject(JOB_NAME_KEY, jobName)).sort(
-				jobInstanceIdObj(-1L)));
-		for (JobInstance instanceEntry : jobInstances) {
-			String key = instanceEntry.getJobName();
-			String curJobName = key.substring(0, key.lastIndexOf("|"));
-
-			if(curJobName.equals(jobName)) {
-				count++;
-			}
-		}
+		ensureJobNamesCatalog();
+		DBObject entry = getJobNamesCollection().findOne(new BasicDBObject(ID_KEY, jobName),
+				new BasicDBObject(INSTANCE_COUNT_KEY, 1));
+		long count = entry == null ? 0 : ((Number) entry.get(INSTANCE_COUNT_KEY)).longValue();
 
 		if(count == 0) {
 			throw new NoSuchJobException("No job instances for job name " + jobName + " were found");
 		} else {
-			return count;
+			return (int) count;
 		}
 	}
 
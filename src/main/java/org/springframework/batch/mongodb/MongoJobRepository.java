@@ -0,0 +1,130 @@
+package org.springframework.batch.mongodb;
+
+import java.util.Collection;
+import java.util.List;
+
+import org.springframework.batch.core.JobExecution;
+import org.springframework.batch.core.JobInstance;
+import org.springframework.batch.core.JobParameters;
+import org.springframework.batch.core.StepExecution;
+import org.springframework.batch.core.repository.JobExecutionAlreadyRunningException;
+import org.springframework.batch.core.repository.JobInstanceAlreadyCompleteException;
+import org.springframework.batch.core.repository.JobRepository;
+import org.springframework.batch.core.repository.JobRestartException;
+import org.springframework.batch.core.repository.dao.ExecutionContextDao;
+import org.springframework.batch.core.repository.dao.JobExecutionDao;
+import org.springframework.util.Assert;
+
+/**
+ * JobRepository answering the restart queries on step executions,
+ * {@link #getLastStepExecution(JobInstance, String)} and
+ * {@link #getStepExecutionCount(JobInstance, String)}, with the indexed
+ * queries of {@link MongoStepExecutionDao} instead of loading every step of
+ * every execution of the instance. <br/>
+ * All other calls go to the (transactional) repository it wraps. Created by
+ * {@link MongoJobRepositoryFactoryBean}.
+ *
+ * @author vfouzdar
+ */
+public class MongoJobRepository implements JobRepository {
+
+	private final JobRepository delegate;
+
+	private final JobExecutionDao jobExecutionDao;
+
+	private final MongoStepExecutionDao stepExecutionDao;
+
+	private final ExecutionContextDao executionContextDao;
+
+	public MongoJobRepository(JobRepository delegate,
+			JobExecutionDao jobExecutionDao,
+			MongoStepExecutionDao stepExecutionDao,
+			ExecutionContextDao executionContextDao) {
+		Assert.notNull(delegate, "JobRepository must not be null.");
+		Assert.notNull(jobExecutionDao, "JobExecutionDao must not be null.");
+		Assert.notNull(stepExecutionDao, "StepExecutionDao must not be null.");
+		Assert.notNull(executionContextDao, "ExecutionContextDao must not be null.");
+		this.delegate = delegate;
+		this.jobExecutionDao = jobExecutionDao;
+		this.stepExecutionDao = stepExecutionDao;
+		this.executionContextDao = executionContextDao;
+	}
+
+	/**
+	 * Latest started step execution of the given name, with its execution
+	 * context and the one of its job execution, as SimpleJobRepository
+	 * returns it.
+	 */
+	public StepExecution getLastStepExecution(JobInstance jobInstance,
+			String stepName) {
+		List<JobExecution> jobExecutions = jobExecutionDao
+				.findJobExecutions(jobInstance);
+		StepExecution latest = stepExecutionDao.getLastStepExecution(
+				jobExecutions, stepName);
+		if (latest != null) {
+			latest.setExecutionContext(executionContextDao
+					.getExecutionContext(latest));
+			JobExecution jobExecution = latest.getJobExecution();
+			jobExecution.setExecutionContext(executionContextDao
+					.getExecutionContext(jobExecution));
+		}
+		return latest;
+	}
+
+	public int getStepExecutionCount(JobInstance jobInstance, String stepName) {
+		return stepExecutionDao.countStepExecutions(jobInstance, stepName);
+	}
+
+	public boolean isJobInstanceExists(String jobName,
+			JobParameters jobParameters) {
+		return delegate.isJobInstanceExists(jobName, jobParameters);
+	}
+
+	public JobInstance createJobInstance(String jobName,
+			JobParameters jobParameters) {
+		return delegate.createJobInstance(jobName, jobParameters);
+	}
+
+	public JobExecution createJobExecution(JobInstance jobInstance,
+			JobParameters jobParameters, String jobConfigurationLocation) {
+		return delegate.createJobExecution(jobInstance, jobParameters,
+				jobConfigurationLocation);
+	}
+
+	public JobExecution createJobExecution(String jobName,
+			JobParameters jobParameters)
+			throws JobExecutionAlreadyRunningException, JobRestartException,
+			JobInstanceAlreadyCompleteException {
+		return delegate.createJobExecution(jobName, jobParameters);
+	}
+
+	public void update(JobExecution jobExecution) {
+		delegate.update(jobExecution);
+	}
+
+	public void add(StepExecution stepExecution) {
+		delegate.add(stepExecution);
+	}
+
+	public void addAll(Collection<StepExecution> stepExecutions) {
+		delegate.addAll(stepExecutions);
+	}
+
+	public void update(StepExecution stepExecution) {
+		delegate.update(stepExecution);
+	}
+
+	public void updateExecutionContext(StepExecution stepExecution) {
+		delegate.updateExecutionContext(stepExecution);
+	}
+
+	public void updateExecutionContext(JobExecution jobExecution) {
+		delegate.updateExecutionContext(jobExecution);
+	}
+
+	public JobExecution getLastJobExecution(String jobName,
+			JobParameters jobParameters) {
+		return delegate.getLastJobExecution(jobName, jobParameters);
+	}
+
+}
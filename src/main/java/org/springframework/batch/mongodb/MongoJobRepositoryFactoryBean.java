@@ -1,12 +1,16 @@
 package org.springframework.batch.mongodb;
 
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.batch.core.repository.JobRepository;
 import org.springframework.batch.core.repository.dao.ExecutionContextDao;
 import org.springframework.batch.core.repository.dao.JobExecutionDao;
 import org.springframework.batch.core.repository.dao.JobInstanceDao;
 import org.springframework.batch.core.repository.dao.StepExecutionDao;
 import org.springframework.batch.core.repository.support.AbstractJobRepositoryFactoryBean;
 import org.springframework.beans.factory.InitializingBean;
+import org.springframework.util.Assert;
 
 /**
  * Job Factory responsible to provide execution/Job DAOs for storing Springbatch metadata in Mongo DB. <br/>
@@ -17,11 +21,17 @@ import org.springframework.beans.factory.InitializingBean;
  * <li>{@link MongoJobInstanceDao}</li>
  * <li>{@link MongoStepExecutionDao}</li>
  * </ul>  
+ * Step executions are stored in their own collection, or inside the job
+ * execution document with {@link #setEmbeddedStepExecutions(boolean)}. In the
+ * former case the repository is a {@link MongoJobRepository}. <br/>
  * 
  * @author vfouzdar
  *
  */
 public class MongoJobRepositoryFactoryBean extends AbstractJobRepositoryFactoryBean implements InitializingBean {
+
+	private static final Logger LOG = LoggerFactory
+			.getLogger(MongoJobRepositoryFactoryBean.class);
 	
 	/**
 	 * To store sprinbatch metadata in MongoDB this should hold an instance of {@link MongoExecutionContextDao}
@@ -43,6 +53,18 @@ public class MongoJobRepositoryFactoryBean extends AbstractJobRepositoryFactoryB
 	 */
     private StepExecutionDao stepExecutionDao;
     
+    /**
+     * Optional, assigns ids in all Mongo DAOs, e.g. a {@link SnowflakeIdGenerator}
+     * to create ids without a round trip to the Sequences collection.
+     */
+    private IdGenerator idGenerator;
+
+    /**
+     * Stores step executions inside their job execution document, see
+     * {@link MongoEmbeddedStepExecutionDao}
+     */
+    private boolean embeddedStepExecutions;
+    
     /**
 	 * Should hold an instance of {@link MongoExecutionContextDao}
 	 */
@@ -71,6 +93,79 @@ public class MongoJobRepositoryFactoryBean extends AbstractJobRepositoryFactoryB
 		this.stepExecutionDao = stepExecutionDao;
 	}
 
+	/**
+	 * Optional, when set it replaces the id generator of every Mongo DAO
+	 */
+	public void setIdGenerator(IdGenerator idGenerator) {
+		this.idGenerator = idGenerator;
+	}
+
+	/**
+	 * Optional, when true the {@link MongoStepExecutionDao} is replaced by a
+	 * {@link MongoEmbeddedStepExecutionDao} using the same MongoTemplate and
+	 * id generator, so that step executions are stored inside their job
+	 * execution document. Defaults to false, the StepExecution collection.
+	 * <br/>
+	 * Write-behind is not available there and fails the configuration, a
+	 * snapshot cache size is ignored. The replaced DAO has already created
+	 * the indexes of the StepExecution collection: set a
+	 * {@link MongoEmbeddedStepExecutionDao} as step execution DAO to avoid
+	 * them.
+	 */
+	public void setEmbeddedStepExecutions(boolean embeddedStepExecutions) {
+		this.embeddedStepExecutions = embeddedStepExecutions;
+	}
+
+	@Override
+	public void afterPropertiesSet() throws Exception {
+		// Before the repository is created by the super class
+		if (embeddedStepExecutions
+				&& !(stepExecutionDao instanceof MongoEmbeddedStepExecutionDao)) {
+			Assert.isInstanceOf(MongoStepExecutionDao.class, stepExecutionDao,
+					"Embedded step executions need a MongoStepExecutionDao to take the MongoTemplate from.");
+			stepExecutionDao = toEmbedded((MongoStepExecutionDao) stepExecutionDao);
+		}
+		super.afterPropertiesSet();
+		if (idGenerator != null) {
+			for (Object dao : new Object[] { jobInstanceDao, jobExecutionDao,
+					stepExecutionDao, executionContextDao }) {
+				if (dao instanceof AbstractMongoDao) {
+					((AbstractMongoDao) dao).setIdGenerator(idGenerator);
+				}
+			}
+		}
+	}
+
+	private MongoEmbeddedStepExecutionDao toEmbedded(MongoStepExecutionDao dao) {
+		Assert.state(dao.getWriteBehindWindow() == 0,
+				"Write-behind is not supported with embedded step executions.");
+		if (dao.getSnapshotCacheSize() != MongoStepExecutionDao.DEFAULT_SNAPSHOT_CACHE_SIZE) {
+			LOG.warn("The snapshot cache size of the MongoStepExecutionDao does not apply to embedded step executions");
+		}
+		LOG.info("Storing step executions in their job execution document, set a MongoEmbeddedStepExecutionDao"
+				+ " as step execution DAO to skip the indexes of the StepExecution collection");
+		MongoEmbeddedStepExecutionDao embedded = new MongoEmbeddedStepExecutionDao(
+				dao.getMongoTemplate());
+		if (dao.getIdGenerator() != null) {
+			embedded.setIdGenerator(dao.getIdGenerator());
+		}
+		return embedded;
+	}
+
+	/**
+	 * The repository of the super class, wrapped in a {@link MongoJobRepository}
+	 * when step executions are stored in their own collection.
+	 */
+	@Override
+	public JobRepository getObject() throws Exception {
+		JobRepository jobRepository = super.getObject();
+		if (stepExecutionDao instanceof MongoStepExecutionDao) {
+			return new MongoJobRepository(jobRepository, jobExecutionDao,
+					(MongoStepExecutionDao) stepExecutionDao, executionContextDao);
+		}
+		return jobRepository;
+	}
+
 	@Override
 	protected JobInstanceDao createJobInstanceDao() throws Exception {
 		return jobInstanceDao;
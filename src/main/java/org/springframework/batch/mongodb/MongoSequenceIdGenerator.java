@@ -0,0 +1,153 @@
+package org.springframework.batch.mongodb;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.util.Assert;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+
+/**
+ * {@link IdGenerator} backed by the {@link AbstractMongoDao#SEQUENCES_COLLECTION_NAME}
+ * collection (hi/lo allocation). <br/>
+ * Each time the local block of a sequence is exhausted a single atomic
+ * findAndModify reserves the next <code>blockSize</code> ids, which are then
+ * handed out from memory. With the default block size of 1 every id costs one
+ * round trip, as before. Ids left in a block when the JVM stops are never
+ * used, so larger blocks leave gaps in the sequence.
+ */
+public class MongoSequenceIdGenerator implements IdGenerator {
+
+	private static final Logger LOG = LoggerFactory
+			.getLogger(MongoSequenceIdGenerator.class);
+
+	public static final String SEQUENCE_NAME_KEY = "name";
+	public static final String SEQUENCE_VALUE_KEY = "value";
+
+	private MongoTemplate mongoTemplate;
+
+	private int blockSize = 1;
+
+	private final ConcurrentMap<String, Block> blocks = new ConcurrentHashMap<String, Block>();
+
+	private final AtomicLong refillCount = new AtomicLong();
+
+	private final AtomicLong reservedIdCount = new AtomicLong();
+
+	public MongoSequenceIdGenerator() {
+	}
+
+	public MongoSequenceIdGenerator(MongoTemplate mongoTemplate) {
+		this.mongoTemplate = mongoTemplate;
+	}
+
+	public void setMongoTemplate(MongoTemplate mongoTemplate) {
+		this.mongoTemplate = mongoTemplate;
+	}
+
+	/**
+	 * Number of ids reserved from Mongo per round trip. Defaults to 1.
+	 */
+	public void setBlockSize(int blockSize) {
+		Assert.isTrue(blockSize > 0, "Block size must be positive.");
+		this.blockSize = blockSize;
+	}
+
+	public int getBlockSize() {
+		return blockSize;
+	}
+
+	/**
+	 * @return number of round trips made to the sequences collection
+	 */
+	public long getRefillCount() {
+		return refillCount.get();
+	}
+
+	/**
+	 * @return number of ids reserved from the sequences collection, used or not
+	 */
+	public long getReservedIdCount() {
+		return reservedIdCount.get();
+	}
+
+	public Long getNextId(String sequenceName) {
+		Block block = blocks.get(sequenceName);
+		if (block != null) {
+			long id = block.next.incrementAndGet();
+			if (id <= block.last) {
+				return id;
+			}
+		}
+		synchronized (blocks) {
+			// Another thread may have refilled while we were waiting
+			block = blocks.get(sequenceName);
+			if (block != null) {
+				long id = block.next.incrementAndGet();
+				if (id <= block.last) {
+					return id;
+				}
+			}
+			block = reserve(sequenceName, blockSize);
+			blocks.put(sequenceName, block);
+			return block.next.incrementAndGet();
+		}
+	}
+
+	/**
+	 * The whole range is reserved with one findAndModify, whatever the block
+	 * size; the local block is left for {@link #getNextId(String)}.
+	 */
+	public List<Long> getNextIds(String sequenceName, int count) {
+		Assert.isTrue(count > 0, "Number of ids must be positive.");
+		Block range = reserve(sequenceName, count);
+		List<Long> ids = new ArrayList<Long>(count);
+		for (long id = range.next.get() + 1; id <= range.last; id++) {
+			ids.add(id);
+		}
+		return ids;
+	}
+
+	/**
+	 * Atomically increments the persistent sequence by <code>size</code>.
+	 */
+	private Block reserve(String sequenceName, int size) {
+		Assert.notNull(mongoTemplate, "MongoTemplate must be set.");
+		DBCollection collection = mongoTemplate.getDb().getCollection(
+				AbstractMongoDao.SEQUENCES_COLLECTION_NAME);
+		DBObject sequence = collection.findAndModify(new BasicDBObject(
+				SEQUENCE_NAME_KEY, sequenceName), new BasicDBObject(
+				SEQUENCE_VALUE_KEY, 1), null, false, new BasicDBObject("$inc",
+				new BasicDBObject(SEQUENCE_VALUE_KEY, (long) size)), true, true);
+		long last = ((Number) sequence.get(SEQUENCE_VALUE_KEY)).longValue();
+
+		refillCount.incrementAndGet();
+		reservedIdCount.addAndGet(size);
+		LOG.debug("Reserved ids {} to {} of sequence {}", new Object[] {
+				last - size + 1, last, sequenceName });
+		return new Block(last - size, last);
+	}
+
+	private static final class Block {
+
+		/** last id handed out */
+		private final AtomicLong next;
+
+		/** last id of the reserved range, inclusive */
+		private final long last;
+
+		private Block(long next, long last) {
+			this.next = new AtomicLong(next);
+			this.last = last;
+		}
+	}
+
+}
@@ -5,28 +5,42 @@ package org.springframework.batch.mongodb;
 import static com.mongodb.BasicDBObjectBuilder.start;
 import static org.springframework.util.Assert.notNull;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.batch.core.BatchStatus;
 import org.springframework.batch.core.ExitStatus;
 import org.springframework.batch.core.JobExecution;
+import org.springframework.batch.core.JobInstance;
 import org.springframework.batch.core.StepExecution;
 import org.springframework.batch.core.repository.dao.StepExecutionDao;
 import org.springframework.dao.OptimisticLockingFailureException;
 import org.springframework.data.mongodb.core.MongoTemplate;
 import org.springframework.stereotype.Repository;
 import org.springframework.util.Assert;
+import org.springframework.util.ObjectUtils;
 
 import com.mongodb.BasicDBObject;
 import com.mongodb.BasicDBObjectBuilder;
 import com.mongodb.DBCollection;
 import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
+import com.mongodb.WriteConcern;
+import com.mongodb.WriteResult;
 
 /**
  * Uses MongoTemplate to perform CRUD on Springbatch's Step Execution Data to
@@ -39,16 +53,99 @@ import com.mongodb.DBObject;
 public class MongoStepExecutionDao extends AbstractMongoDao implements StepExecutionDao {
     
     private static final Logger LOG = LoggerFactory.getLogger(MongoStepExecutionDao.class);
+
+    public static final int DEFAULT_SNAPSHOT_CACHE_SIZE = 1000;
     
+	private static final DBObject JOB_EXECUTION_ID_FIELDS = start()
+			.add(JOB_EXECUTION_ID_KEY, 1).add(ID_KEY, 0).get();
+
 	private MongoTemplate mongoTemplate;
+
+	/**
+	 * LRU map of step execution id to the fields last persisted, including the
+	 * version, so that updates only send what changed. Disabled when null.
+	 */
+	private Map<Long, DBObject> snapshots;
+
+	private int snapshotCacheSize;
+
+	/**
+	 * Milliseconds during which progress updates of a step execution are kept
+	 * in memory only, 0 (the default) writes every update.
+	 */
+	private volatile long writeBehindWindow;
+
+	/** Last write of each running step execution, in write-behind mode */
+	private final ConcurrentMap<Long, LastWrite> lastWrites = new ConcurrentHashMap<Long, LastWrite>();
 	    
+    public MongoStepExecutionDao() {
+        setSnapshotCacheSize(DEFAULT_SNAPSHOT_CACHE_SIZE);
+    }
+
     public void setMongoTemplate(MongoTemplate mongoTemplate) {
 		this.mongoTemplate = mongoTemplate;
 	}
 
+    public MongoTemplate getMongoTemplate() {
+		return mongoTemplate;
+	}
+
+	/**
+	 * Enables write-behind of progress updates: for <code>writeBehindWindow</code>
+	 * milliseconds after a step execution was written, updates that only
+	 * change its counts are coalesced in memory. Updates changing the status or
+	 * exit code, adding failures or ending the step are written at once,
+	 * together with the progress kept so far. <br/>
+	 * Nothing writes deferred progress in the background: it is written by
+	 * the first update after the window has passed, by {@link #flush()} or
+	 * when the step ends. Readers of the repository, and a restart after a
+	 * crash, see the counts of a running step as of its last write, which is
+	 * older than the window if no update followed; execution contexts, which
+	 * restarts resume from, are still written on every update. 0 (the
+	 * default) disables write-behind.
+	 * 
+	 * @see #flush()
+	 */
+	public void setWriteBehindWindow(long writeBehindWindow) {
+		Assert.isTrue(writeBehindWindow >= 0, "Write-behind window must not be negative.");
+		this.writeBehindWindow = writeBehindWindow;
+	}
+
+	public long getWriteBehindWindow() {
+		return writeBehindWindow;
+	}
+
+	/**
+	 * Number of running step executions whose last persisted state is kept to
+	 * send delta updates. Defaults to 1000, 0 disables delta updates so that
+	 * every update rewrites all fields.
+	 */
+	public void setSnapshotCacheSize(final int size) {
+		Assert.isTrue(size >= 0, "Cache size must not be negative.");
+		snapshotCacheSize = size;
+		if (size == 0) {
+			snapshots = null;
+			return;
+		}
+		snapshots = Collections.synchronizedMap(new LinkedHashMap<Long, DBObject>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, DBObject> eldest) {
+				return size() > size;
+			}
+		});
+	}
+
+	public int getSnapshotCacheSize() {
+		return snapshotCacheSize;
+	}
+
 	@PostConstruct
     public void init() {
         getCollection().ensureIndex(BasicDBObjectBuilder.start().add(STEP_EXECUTION_ID_KEY, 1).add(JOB_EXECUTION_ID_KEY, 1).get());
+        // Steps of a name across the executions of an instance
+        getCollection().ensureIndex(BasicDBObjectBuilder.start().add(JOB_EXECUTION_ID_KEY, 1).add(STEP_NAME_KEY, 1).get());
 
     }
 
@@ -65,10 +162,12 @@ public class MongoStepExecutionDao extends AbstractMongoDao implements StepExecu
         DBObject object = toDbObjectWithoutVersion(stepExecution);
         object.put(VERSION_KEY, stepExecution.getVersion());
         getCollection().save(object);
+        remember(stepExecution, object);
+        track(stepExecution);
 
     }
 
-    private DBObject toDbObjectWithoutVersion(StepExecution stepExecution) {
+    static DBObject toDbObjectWithoutVersion(StepExecution stepExecution) {
         return start()
                 .add(STEP_EXECUTION_ID_KEY, stepExecution.getId())
                 .add(STEP_NAME_KEY, stepExecution.getStepName())
@@ -89,35 +188,176 @@ public class MongoStepExecutionDao extends AbstractMongoDao implements StepExecu
                 .add(LAST_UPDATED_KEY, stepExecution.getLastUpdated()).get();
     }
 
-    public synchronized void updateStepExecution(StepExecution stepExecution) {
-        // Attempt to prevent concurrent modification errors by blocking here if
-        // someone is already trying to do it.
-        Integer currentVersion = stepExecution.getVersion();
-        Integer newVersion = currentVersion + 1;
+    /**
+     * Single acknowledged update guarded by the version, safe without a local
+     * lock: partitions and threads of a step update different documents, and
+     * concurrent updates of the same execution are arbitrated by the version
+     * predicate. Only a failed update reads the document again. <br/>
+     * When the fields persisted with the current version are known, only
+     * those that changed are sent, typically the counts and last updated time
+     * of a chunk commit.
+     * 
+     * @see #setWriteBehindWindow(long)
+     */
+    public void updateStepExecution(StepExecution stepExecution) {
+        notNull(stepExecution.getId(), "StepExecution id cannot be null. StepExecution must be saved before it can be updated.");
+        long window = writeBehindWindow;
+        if (window <= 0) {
+            write(stepExecution, stepExecution.getVersion());
+            return;
+        }
+        synchronized (stepExecution) {
+            LastWrite lastWrite = lastWrites.get(stepExecution.getId());
+            if (lastWrite == null || lastWrite.stepExecution != stepExecution) {
+                // Not written through this instance, nothing deferred
+                write(stepExecution, stepExecution.getVersion());
+            } else if (lastWrite.isProgressOnly(stepExecution, window)) {
+                // The version still moves, as if written
+                stepExecution.incrementVersion();
+                return;
+            } else {
+                write(stepExecution, lastWrite.version);
+            }
+            track(stepExecution);
+        }
+    }
+
+    /**
+     * Writes the progress kept in memory by write-behind, e.g. before
+     * shutdown. Failures are logged, not thrown.
+     */
+    @PreDestroy
+    public void flush() {
+        for (LastWrite lastWrite : lastWrites.values()) {
+            StepExecution stepExecution = lastWrite.stepExecution;
+            synchronized (stepExecution) {
+                if (!lastWrites.remove(stepExecution.getId(), lastWrite)
+                        || stepExecution.getVersion().equals(lastWrite.version)) {
+                    continue;
+                }
+                try {
+                    write(stepExecution, lastWrite.version);
+                } catch (RuntimeException e) {
+                    LOG.error("Failed to flush step execution id=" + stepExecution.getId(), e);
+                }
+            }
+        }
+    }
+
+    private void track(StepExecution stepExecution) {
+        if (writeBehindWindow <= 0 || stepExecution.getEndTime() != null) {
+            lastWrites.remove(stepExecution.getId());
+        } else {
+            lastWrites.put(stepExecution.getId(), new LastWrite(stepExecution));
+        }
+    }
+
+    /**
+     * @param persistedVersion version of the document, lower than the version
+     *            of the step execution if updates were deferred
+     */
+    private void write(StepExecution stepExecution, Integer persistedVersion) {
+        Integer currentVersion = persistedVersion;
+        Integer newVersion = stepExecution.getVersion() + 1;
         DBObject object = toDbObjectWithoutVersion(stepExecution);
         object.put(VERSION_KEY, newVersion);
-        getCollection().update(start()
+        WriteResult result = getCollection().update(start()
                 .add(STEP_EXECUTION_ID_KEY, stepExecution.getId())
                 .add(VERSION_KEY, currentVersion).get(),
-                object);
+                new BasicDBObject("$set", changedFields(stepExecution, currentVersion, object)), false, false,
+                WriteConcern.ACKNOWLEDGED);
 
-        // Avoid concurrent modifications...
-        DBObject lastError = mongoTemplate.getDb().getLastError();
-        if (!((Boolean) lastError.get(UPDATED_EXISTING_STATUS))) {
-            LOG.error("Update returned status {}", lastError);
+        if (result.getN() == 0) {
+            forget(stepExecution);
+            lastWrites.remove(stepExecution.getId());
             DBObject existingStepExecution = getCollection().findOne(stepExecutionIdObj(stepExecution.getId()), new BasicDBObject(VERSION_KEY, 1));
             if (existingStepExecution == null) {
                 throw new IllegalArgumentException("Can't update this stepExecution, it was never saved.");
             }
             Integer curentVersion = ((Integer) existingStepExecution.get(VERSION_KEY));
-            throw new OptimisticLockingFailureException("Attempt to update job execution id="
+            LOG.error("Update of step execution id={} with version {} failed, current version is {}",
+                    new Object[] {stepExecution.getId(), currentVersion, curentVersion});
+            throw new OptimisticLockingFailureException("Attempt to update step execution id="
                     + stepExecution.getId() + " with wrong version (" + currentVersion
                     + "), where current version is " + curentVersion);
         }
 
         stepExecution.incrementVersion();
+        if (stepExecution.getEndTime() == null) {
+            remember(stepExecution, object);
+        } else {
+            // Ended, no more updates expected
+            forget(stepExecution);
+        }
+    }
+
+    /**
+     * @param object all fields with the new version
+     * @return the fields that differ from those persisted with the current
+     *         version, all fields if those are unknown
+     */
+    private DBObject changedFields(StepExecution stepExecution, Integer currentVersion, DBObject object) {
+        Map<Long, DBObject> cache = snapshots;
+        DBObject snapshot = cache == null ? null : cache.get(stepExecution.getId());
+        if (snapshot == null || !currentVersion.equals(snapshot.get(VERSION_KEY))) {
+            return object;
+        }
+        DBObject changed = new BasicDBObject();
+        for (String key : object.keySet()) {
+            Object value = object.get(key);
+            if (!ObjectUtils.nullSafeEquals(value, snapshot.get(key))) {
+                changed.put(key, value);
+            }
+        }
+        return changed;
+    }
+
+    private void remember(StepExecution stepExecution, DBObject persisted) {
+        Map<Long, DBObject> cache = snapshots;
+        if (cache != null) {
+            cache.put(stepExecution.getId(), persisted);
+        }
     }
 
+    private void forget(StepExecution stepExecution) {
+        Map<Long, DBObject> cache = snapshots;
+        if (cache != null) {
+            cache.remove(stepExecution.getId());
+        }
+    }
+
+
+    /**
+     * What was written last for a step execution, to tell progress from other
+     * changes.
+     */
+    private static final class LastWrite {
+
+        private final StepExecution stepExecution;
+
+        private final Integer version;
+
+        private final BatchStatus status;
+
+        private final String exitCode;
+
+        private final long time = System.currentTimeMillis();
+
+        private LastWrite(StepExecution stepExecution) {
+            this.stepExecution = stepExecution;
+            this.version = stepExecution.getVersion();
+            this.status = stepExecution.getStatus();
+            this.exitCode = stepExecution.getExitStatus().getExitCode();
+        }
+
+        private boolean isProgressOnly(StepExecution stepExecution, long window) {
+            return stepExecution.getEndTime() == null
+                    && stepExecution.getStatus() == status
+                    && stepExecution.getExitStatus().getExitCode().equals(exitCode)
+                    && stepExecution.getFailureExceptions().isEmpty()
+                    && System.currentTimeMillis() - time < window;
+        }
+    }
 
     static BasicDBObject stepExecutionIdObj(Long id) {
         return new BasicDBObject(STEP_EXECUTION_ID_KEY, id);
@@ -130,7 +370,7 @@ public class MongoStepExecutionDao extends AbstractMongoDao implements StepExecu
                 .add(JOB_EXECUTION_ID_KEY, jobExecution.getId()).get()), jobExecution);
     }
 
-    private StepExecution mapStepExecution(DBObject object, JobExecution jobExecution) {
+    static StepExecution mapStepExecution(DBObject object, JobExecution jobExecution) {
         if (object == null) {
             return null;
         }
@@ -162,25 +402,105 @@ public class MongoStepExecutionDao extends AbstractMongoDao implements StepExecu
         }
     }
 
+    /**
+     * Last step execution of the given name among the job executions of an
+     * instance, the latest started one as in {@link
+     * org.springframework.batch.core.repository.support.SimpleJobRepository},
+     * in one indexed query instead of loading every step of every execution.
+     * <br/>The step execution is added to the job execution it belongs to,
+     * its execution context is not loaded.
+     * 
+     * @param jobExecutions all executions of the JobInstance
+     * @return the step execution or null if there is none
+     */
+    public StepExecution getLastStepExecution(Collection<JobExecution> jobExecutions, String stepName) {
+        Map<Long, JobExecution> byId = new HashMap<Long, JobExecution>(jobExecutions.size());
+        for (JobExecution jobExecution : jobExecutions) {
+            byId.put(jobExecution.getId(), jobExecution);
+        }
+        if (byId.isEmpty()) {
+            return null;
+        }
+        DBCursor cursor = getCollection().find(stepNameQuery(byId.keySet(), stepName))
+                .sort(start().add(START_TIME_KEY, -1).add(STEP_EXECUTION_ID_KEY, -1).get()).limit(1);
+        if (!cursor.hasNext()) {
+            return null;
+        }
+        DBObject object = cursor.next();
+        return mapStepExecution(object, byId.get(object.get(JOB_EXECUTION_ID_KEY)));
+    }
+
+    /**
+     * Number of step executions of the given name across all executions of
+     * an instance, counted on the index without loading any step.
+     */
+    public int countStepExecutions(JobInstance jobInstance, String stepName) {
+        notNull(jobInstance, "JobInstance cannot be null.");
+        List<Long> jobExecutionIds = new ArrayList<Long>();
+        // Covered by the (jobInstanceId, jobExecutionId) index of the JobExecution collection
+        DBCursor cursor = mongoTemplate.getCollection(JobExecution.class.getSimpleName()).find(
+                jobInstanceIdObj(jobInstance.getId()), JOB_EXECUTION_ID_FIELDS);
+        while (cursor.hasNext()) {
+            jobExecutionIds.add((Long) cursor.next().get(JOB_EXECUTION_ID_KEY));
+        }
+        if (jobExecutionIds.isEmpty()) {
+            return 0;
+        }
+        return (int) getCollection().count(stepNameQuery(jobExecutionIds, stepName));
+    }
+
+    private static DBObject stepNameQuery(Collection<Long> jobExecutionIds, String stepName) {
+        return start().add(JOB_EXECUTION_ID_KEY, new BasicDBObject("$in", jobExecutionIds))
+                .add(STEP_NAME_KEY, stepName).get();
+    }
+
     @Override
     protected DBCollection getCollection() {
         return mongoTemplate.getCollection(StepExecution.class.getSimpleName());
     }
 
-    private void validateStepExecution(StepExecution stepExecution) {
+    static void validateStepExecution(StepExecution stepExecution) {
         notNull(stepExecution);
         notNull(stepExecution.getStepName(), "StepExecution step name cannot be null.");
         notNull(stepExecution.getStartTime(), "StepExecution start time cannot be null.");
         notNull(stepExecution.getStatus(), "StepExecution status cannot be null.");
     }
 
+	/**
+	 * Saves all step executions (e.g. the partitions of a step) with a single
+	 * id reservation and one insert per {@link #INSERT_BATCH_SIZE} documents.
+	 * Ids and versions are assigned before the write.
+	 */
 	@Override
 	public void saveStepExecutions(Collection<StepExecution> stepExecutions) {
 		Assert.notNull(stepExecutions,"Attempt to save an null collect of step executions");
-		for (StepExecution stepExecution: stepExecutions) {
-			saveStepExecution(stepExecution);
+		if (stepExecutions.isEmpty()) {
+			return;
+		}
+		for (StepExecution stepExecution : stepExecutions) {
+			Assert.isNull(stepExecution.getId(),
+					"to-be-saved (not updated) StepExecution can't already have an id assigned");
+			Assert.isNull(stepExecution.getVersion(),
+					"to-be-saved (not updated) StepExecution can't already have a version assigned");
+			validateStepExecution(stepExecution);
+		}
+
+		Iterator<Long> ids = getNextIds(StepExecution.class.getSimpleName(),
+				stepExecutions.size(), mongoTemplate).iterator();
+		List<DBObject> objects = new ArrayList<DBObject>(stepExecutions.size());
+		for (StepExecution stepExecution : stepExecutions) {
+			stepExecution.setId(ids.next());
+			stepExecution.incrementVersion(); // should be 0 now
+			DBObject object = toDbObjectWithoutVersion(stepExecution);
+			object.put(VERSION_KEY, stepExecution.getVersion());
+			objects.add(object);
+		}
+		insertInBatches(objects);
+		Iterator<DBObject> saved = objects.iterator();
+		for (StepExecution stepExecution : stepExecutions) {
+			remember(stepExecution, saved.next());
+			track(stepExecution);
 		}
-		
 	}
 
 }
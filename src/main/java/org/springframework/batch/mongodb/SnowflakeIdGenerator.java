@@ -0,0 +1,215 @@
+package org.springframework.batch.mongodb;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.util.Assert;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.BasicDBObjectBuilder;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import com.mongodb.WriteConcern;
+
+/**
+ * {@link IdGenerator} creating ids locally, without a round trip to Mongo. <br/>
+ * Ids are 64 bit longs made of 41 bits of milliseconds since
+ * {@link #EPOCH}, a 10 bit node id and a 12 bit counter, so they are unique
+ * across JVMs and increase monotonically within a JVM. A single id space is
+ * shared by all sequence names. <br/>
+ * The node id is either set explicitly or leased from the
+ * {@link #NODES_COLLECTION_NAME} collection on first use. The lease is renewed
+ * when half of <code>leaseDuration</code> has elapsed and released on
+ * {@link #destroy()}; a node that dies keeps its id until the lease expires.
+ * A JVM idle for longer than the lease leases a new node id if its old one
+ * was taken in the meantime.
+ */
+public class SnowflakeIdGenerator implements IdGenerator, DisposableBean {
+
+	private static final Logger LOG = LoggerFactory
+			.getLogger(SnowflakeIdGenerator.class);
+
+	public static final String NODES_COLLECTION_NAME = "IdGeneratorNodes";
+	public static final String OWNER_KEY = "owner";
+	public static final String LEASED_UNTIL_KEY = "leasedUntil";
+
+	/** 2014-01-01T00:00:00Z, leaves room for ~69 years of ids */
+	public static final long EPOCH = 1388534400000L;
+
+	static final int NODE_BITS = 10;
+	static final int COUNTER_BITS = 12;
+	public static final int MAX_NODE_ID = (1 << NODE_BITS) - 1;
+	private static final long MAX_COUNTER = (1L << COUNTER_BITS) - 1;
+
+	private MongoTemplate mongoTemplate;
+
+	private long leaseDuration = 24L * 60 * 60 * 1000;
+
+	private final String owner = ManagementFactory.getRuntimeMXBean().getName()
+			+ "/" + UUID.randomUUID();
+
+	private int nodeId = -1;
+
+	private boolean leased;
+
+	private long leaseRenewAt;
+
+	private long lastTimestamp = -1L;
+
+	private long counter;
+
+	public SnowflakeIdGenerator() {
+	}
+
+	public SnowflakeIdGenerator(MongoTemplate mongoTemplate) {
+		this.mongoTemplate = mongoTemplate;
+	}
+
+	/**
+	 * Used to lease the node id, not needed if the node id is set explicitly.
+	 */
+	public void setMongoTemplate(MongoTemplate mongoTemplate) {
+		this.mongoTemplate = mongoTemplate;
+	}
+
+	/**
+	 * Fixes the node id instead of leasing one. Every JVM writing to the same
+	 * database must then be given a different value.
+	 */
+	public synchronized void setNodeId(int nodeId) {
+		Assert.isTrue(nodeId >= 0 && nodeId <= MAX_NODE_ID, "Node id must be between 0 and "
+				+ MAX_NODE_ID);
+		this.nodeId = nodeId;
+	}
+
+	/**
+	 * @return node id in use, -1 if none has been leased yet
+	 */
+	public synchronized int getNodeId() {
+		return nodeId;
+	}
+
+	/**
+	 * How long a leased node id stays reserved without renewal, in
+	 * milliseconds. Defaults to one day.
+	 */
+	public void setLeaseDuration(long leaseDuration) {
+		Assert.isTrue(leaseDuration > 0, "Lease duration must be positive.");
+		this.leaseDuration = leaseDuration;
+	}
+
+	public synchronized Long getNextId(String sequenceName) {
+		long now = System.currentTimeMillis();
+		if (nodeId < 0) {
+			lease(now);
+		} else if (leased && now >= leaseRenewAt) {
+			renew(now);
+		}
+
+		if (now > lastTimestamp) {
+			lastTimestamp = now;
+			counter = 0;
+		} else if (counter < MAX_COUNTER) {
+			// Same millisecond, or the clock went backwards: never go back
+			counter++;
+		} else {
+			// Counter exhausted, borrow the next millisecond
+			lastTimestamp++;
+			counter = 0;
+		}
+		return ((lastTimestamp - EPOCH) << (NODE_BITS + COUNTER_BITS))
+				| ((long) nodeId << COUNTER_BITS) | counter;
+	}
+
+	/**
+	 * Ids are created locally, one after the other.
+	 */
+	public synchronized List<Long> getNextIds(String sequenceName, int count) {
+		Assert.isTrue(count > 0, "Number of ids must be positive.");
+		List<Long> ids = new ArrayList<Long>(count);
+		for (int i = 0; i < count; i++) {
+			ids.add(getNextId(sequenceName));
+		}
+		return ids;
+	}
+
+	/**
+	 * Releases a leased node id so that another JVM can use it right away.
+	 */
+	public synchronized void destroy() {
+		if (leased) {
+			getNodesCollection().remove(
+					BasicDBObjectBuilder.start()
+							.add(AbstractMongoDao.ID_KEY, nodeId)
+							.add(OWNER_KEY, owner).get());
+			LOG.info("Released id generator node {}", nodeId);
+			leased = false;
+			nodeId = -1;
+		}
+	}
+
+	private void lease(long now) {
+		DBCollection nodes = getNodesCollection();
+		for (int candidate = 0; candidate <= MAX_NODE_ID; candidate++) {
+			DBObject lease = leaseObj(now);
+			lease.put(AbstractMongoDao.ID_KEY, candidate);
+			try {
+				nodes.insert(lease, WriteConcern.ACKNOWLEDGED);
+			} catch (MongoException.DuplicateKey e) {
+				// Taken, unless its lease has expired
+				DBObject expired = BasicDBObjectBuilder
+						.start()
+						.add(AbstractMongoDao.ID_KEY, candidate)
+						.add(LEASED_UNTIL_KEY,
+								new BasicDBObject("$lt", new Date(now))).get();
+				if (nodes.findAndModify(expired, leaseObj(now)) == null) {
+					continue;
+				}
+			}
+			nodeId = candidate;
+			leased = true;
+			leaseRenewAt = now + leaseDuration / 2;
+			LOG.info("Leased id generator node {} as {}", nodeId, owner);
+			return;
+		}
+		throw new IllegalStateException("All " + (MAX_NODE_ID + 1)
+				+ " id generator node ids are leased.");
+	}
+
+	private void renew(long now) {
+		DBObject renewed = getNodesCollection().findAndModify(
+				BasicDBObjectBuilder.start()
+						.add(AbstractMongoDao.ID_KEY, nodeId)
+						.add(OWNER_KEY, owner).get(), leaseObj(now));
+		if (renewed == null) {
+			// Expired while idle and taken over: lease another node id. The
+			// timestamp and counter carry over, so ids keep increasing.
+			LOG.warn("Lease of id generator node {} was lost, leasing another one", nodeId);
+			nodeId = -1;
+			leased = false;
+			lease(now);
+			return;
+		}
+		leaseRenewAt = now + leaseDuration / 2;
+	}
+
+	private DBObject leaseObj(long now) {
+		return BasicDBObjectBuilder.start().add(OWNER_KEY, owner)
+				.add(LEASED_UNTIL_KEY, new Date(now + leaseDuration)).get();
+	}
+
+	private DBCollection getNodesCollection() {
+		Assert.notNull(mongoTemplate,
+				"MongoTemplate must be set to lease a node id.");
+		return mongoTemplate.getDb().getCollection(NODES_COLLECTION_NAME);
+	}
+
+}
@@ -81,6 +81,8 @@ public abstract class AbstractJobDaoTests {
 	@Before
 	public void onSetUpInTransaction() throws Exception {
 		mongoTemplate.getDb().dropDatabase();
+		// The unique job key index goes with the database
+		((MongoJobInstanceDao) jobInstanceDao).init();
 		// Create job.
 		jobInstance = jobInstanceDao.createJobInstance(jobName, jobParameters);
 
@@ -1,14 +1,23 @@
 package org.springframework.batch.mongodb.test;
 
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
 import org.junit.Assert;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.springframework.batch.core.JobInstance;
 import org.springframework.batch.core.JobParameters;
+import org.springframework.batch.mongodb.AbstractMongoDao;
+import org.springframework.batch.mongodb.MongoSequenceIdGenerator;
+import org.springframework.batch.mongodb.SnowflakeIdGenerator;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 import org.springframework.batch.core.JobExecution;
 
+import com.mongodb.BasicDBObject;
+
 
 /**
  * Junits to test sequence CRUD 
@@ -40,4 +49,126 @@ public class MongoDaoTests extends AbstractJobDaoTests{
 
         }
     }
+
+    @Test
+    public void testBlockSequenceIdGenerator() {
+    	mongoTemplate.getDb().dropDatabase();
+    	MongoSequenceIdGenerator idGenerator = new MongoSequenceIdGenerator(mongoTemplate);
+    	idGenerator.setBlockSize(10);
+
+    	for (long i = 1; i <= 25; i++) {
+    		Assert.assertEquals(new Long(i), idGenerator.getNextId("testSequence"));
+    	}
+    	Assert.assertEquals(3, idGenerator.getRefillCount());
+    	Assert.assertEquals(30, idGenerator.getReservedIdCount());
+
+    	// The persistent sequence is advanced by whole blocks
+    	Assert.assertEquals(30L, mongoTemplate.getCollection(AbstractMongoDao.SEQUENCES_COLLECTION_NAME)
+    			.findOne(new BasicDBObject(MongoSequenceIdGenerator.SEQUENCE_NAME_KEY, "testSequence"))
+    			.get(MongoSequenceIdGenerator.SEQUENCE_VALUE_KEY));
+
+    	// Another generator (e.g. on another node) continues after the reserved block
+    	Assert.assertEquals(new Long(31), new MongoSequenceIdGenerator(mongoTemplate).getNextId("testSequence"));
+    }
+
+    @Test
+    public void testBlockSequenceIdGeneratorConcurrentAccess() throws Exception {
+    	mongoTemplate.getDb().dropDatabase();
+    	final MongoSequenceIdGenerator idGenerator = new MongoSequenceIdGenerator(mongoTemplate);
+    	idGenerator.setBlockSize(7);
+    	final Set<Long> ids = Collections.synchronizedSet(new HashSet<Long>());
+
+    	Thread[] threads = new Thread[8];
+    	for (int t = 0; t < threads.length; t++) {
+    		threads[t] = new Thread() {
+    			public void run() {
+    				for (int i = 0; i < 100; i++) {
+    					ids.add(idGenerator.getNextId("testSequence"));
+    				}
+    			}
+    		};
+    		threads[t].start();
+    	}
+    	for (Thread thread : threads) {
+    		thread.join();
+    	}
+    	Assert.assertEquals(800, ids.size());
+    }
+
+    @Test
+    public void testSnowflakeIdGenerator() throws Exception {
+    	mongoTemplate.getDb().dropDatabase();
+    	SnowflakeIdGenerator first = new SnowflakeIdGenerator(mongoTemplate);
+    	SnowflakeIdGenerator second = new SnowflakeIdGenerator(mongoTemplate);
+
+    	Set<Long> ids = new HashSet<Long>();
+    	long last = 0;
+    	for (int i = 0; i < 10000; i++) {
+    		Long id = first.getNextId("JobExecution");
+    		Assert.assertTrue("Ids must increase", id > last);
+    		last = id;
+    		ids.add(id);
+    		ids.add(second.getNextId("JobExecution"));
+    	}
+    	Assert.assertEquals(20000, ids.size());
+    	Assert.assertTrue(first.getNodeId() != second.getNodeId());
+    	Assert.assertEquals(2, mongoTemplate.getCollection(SnowflakeIdGenerator.NODES_COLLECTION_NAME).count());
+
+    	// Released node ids are leased again
+    	int released = first.getNodeId();
+    	first.destroy();
+    	SnowflakeIdGenerator third = new SnowflakeIdGenerator(mongoTemplate);
+    	third.getNextId("JobExecution");
+    	Assert.assertEquals(released, third.getNodeId());
+    	second.destroy();
+    	third.destroy();
+    }
+
+    /**
+     * A node id taken over after its lease expired is replaced by another one
+     */
+    @Test
+    public void testSnowflakeIdGeneratorLostLease() throws Exception {
+    	mongoTemplate.getDb().dropDatabase();
+    	SnowflakeIdGenerator idle = new SnowflakeIdGenerator(mongoTemplate);
+    	idle.setLeaseDuration(50);
+    	Long before = idle.getNextId("JobExecution");
+    	int lost = idle.getNodeId();
+    	Thread.sleep(100);
+
+    	SnowflakeIdGenerator other = new SnowflakeIdGenerator(mongoTemplate);
+    	Long otherId = other.getNextId("JobExecution");
+    	Assert.assertEquals(lost, other.getNodeId());
+
+    	Long after = idle.getNextId("JobExecution");
+    	Assert.assertTrue(idle.getNodeId() != lost);
+    	Assert.assertTrue("Ids must increase", after > before);
+    	Assert.assertFalse(after.equals(otherId));
+    	Assert.assertTrue(idle.getNextId("JobExecution") > after);
+    	idle.destroy();
+    	other.destroy();
+    	Assert.assertEquals(0, mongoTemplate.getCollection(SnowflakeIdGenerator.NODES_COLLECTION_NAME).count());
+    }
+
+    @Test
+    public void testSnowflakeIdGeneratorWithDaos() {
+    	mongoTemplate.getDb().dropDatabase();
+    	SnowflakeIdGenerator idGenerator = new SnowflakeIdGenerator();
+    	idGenerator.setNodeId(5);
+    	((AbstractMongoDao) jobInstanceDao).setIdGenerator(idGenerator);
+    	((AbstractMongoDao) jobExecutionDao).setIdGenerator(idGenerator);
+    	try {
+    		JobInstance ji = jobInstanceDao.createJobInstance("testSnowflakeJob", new JobParameters());
+    		JobExecution jobExecution = new JobExecution(ji, null);
+    		jobExecutionDao.saveJobExecution(jobExecution);
+
+    		Assert.assertTrue(ji.getId() > Integer.MAX_VALUE);
+    		Assert.assertTrue(jobExecution.getId() > ji.getId());
+    		Assert.assertEquals(jobExecution, jobExecutionDao.getLastJobExecution(ji));
+    		Assert.assertFalse(mongoTemplate.getDb().collectionExists(AbstractMongoDao.SEQUENCES_COLLECTION_NAME));
+    	} finally {
+    		((AbstractMongoDao) jobInstanceDao).setIdGenerator(null);
+    		((AbstractMongoDao) jobExecutionDao).setIdGenerator(null);
+    	}
+    }
 }
@@ -0,0 +1,251 @@
+package org.springframework.batch.mongodb.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.batch.core.BatchStatus;
+import org.springframework.batch.core.JobExecution;
+import org.springframework.batch.core.JobParameters;
+import org.springframework.batch.core.StepExecution;
+import org.springframework.batch.core.repository.JobRepository;
+import org.springframework.batch.core.repository.dao.ExecutionContextDao;
+import org.springframework.batch.core.repository.dao.JobExecutionDao;
+import org.springframework.batch.core.repository.dao.JobInstanceDao;
+import org.springframework.batch.core.repository.dao.StepExecutionDao;
+import org.springframework.batch.mongodb.MongoEmbeddedStepExecutionDao;
+import org.springframework.batch.mongodb.MongoJobRepositoryFactoryBean;
+import org.springframework.batch.mongodb.MongoSequenceIdGenerator;
+import org.springframework.batch.mongodb.MongoStepExecutionDao;
+import org.springframework.batch.support.transaction.ResourcelessTransactionManager;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import com.mongodb.DBObject;
+
+/**
+ * Tests for {@link MongoEmbeddedStepExecutionDao}, step executions stored
+ * inside their job execution document.
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(locations = {
+	    "classpath:spring/batch/config/test-context.xml"})
+public class MongoEmbeddedStepExecutionDaoTests {
+
+    @Autowired
+    protected MongoTemplate mongoTemplate;
+
+    @Autowired
+    private JobInstanceDao jobInstanceDao;
+
+    @Autowired
+    private JobExecutionDao jobExecutionDao;
+
+    @Autowired
+    private StepExecutionDao stepExecutionDao;
+
+    @Autowired
+    private ExecutionContextDao executionContextDao;
+
+    private MongoEmbeddedStepExecutionDao dao;
+
+    private JobExecution jobExecution;
+
+    private StepExecution stepExecution;
+
+    @Before
+    public void onSetUp() throws Exception {
+        mongoTemplate.getDb().dropDatabase();
+        dao = new MongoEmbeddedStepExecutionDao(mongoTemplate);
+        jobExecution = new JobExecution(jobInstanceDao.createJobInstance("job", new JobParameters()), null);
+        jobExecutionDao.saveJobExecution(jobExecution);
+        stepExecution = new StepExecution("foo", jobExecution);
+        stepExecution.setStartTime(new Date());
+    }
+
+    @Test
+    public void testSaveAndGetExecution() {
+        stepExecution.setStatus(BatchStatus.STARTED);
+        stepExecution.setReadCount(17);
+        stepExecution.setLastUpdated(new Date());
+        dao.saveStepExecution(stepExecution);
+        assertNotNull(stepExecution.getId());
+        assertEquals(Integer.valueOf(0), stepExecution.getVersion());
+
+        StepExecution retrieved = dao.getStepExecution(jobExecution, stepExecution.getId());
+        assertEquals(stepExecution.getId(), retrieved.getId());
+        assertEquals(BatchStatus.STARTED, retrieved.getStatus());
+        assertEquals(17, retrieved.getReadCount());
+        assertEquals(stepExecution.getLastUpdated(), retrieved.getLastUpdated());
+        assertFalse(mongoTemplate.getDb().collectionExists(StepExecution.class.getSimpleName()));
+        assertNull(dao.getStepExecution(jobExecution, 45677L));
+    }
+
+    /**
+     * All steps are loaded with the job execution document, in id order
+     */
+    @Test
+    public void testSaveStepExecutionsAndAddStepExecutions() {
+        List<StepExecution> steps = new ArrayList<StepExecution>();
+        for (int i = 0; i < 50; i++) {
+            StepExecution step = new StepExecution("step" + i, jobExecution);
+            step.setStartTime(new Date());
+            step.setReadCount(i);
+            steps.add(step);
+        }
+        dao.saveStepExecutions(steps);
+
+        JobExecution loaded = jobExecutionDao.getJobExecution(jobExecution.getId());
+        dao.addStepExecutions(loaded);
+        assertEquals(50, loaded.getStepExecutions().size());
+        Iterator<StepExecution> iterator = loaded.getStepExecutions().iterator();
+        for (StepExecution expected : steps) {
+            StepExecution actual = iterator.next();
+            assertEquals(expected.getId(), actual.getId());
+            assertEquals(expected.getStepName(), actual.getStepName());
+            assertEquals(expected.getReadCount(), actual.getReadCount());
+        }
+    }
+
+    @Test
+    public void testUpdateExecution() {
+        dao.saveStepExecution(stepExecution);
+        StepExecution other = new StepExecution("bar", jobExecution);
+        other.setStartTime(new Date());
+        dao.saveStepExecution(other);
+
+        stepExecution.setStatus(BatchStatus.COMPLETED);
+        stepExecution.setEndTime(new Date());
+        stepExecution.setCommitCount(5);
+        dao.updateStepExecution(stepExecution);
+        assertEquals(Integer.valueOf(1), stepExecution.getVersion());
+
+        StepExecution retrieved = dao.getStepExecution(jobExecution, stepExecution.getId());
+        assertEquals(BatchStatus.COMPLETED, retrieved.getStatus());
+        assertEquals(5, retrieved.getCommitCount());
+        assertEquals(Integer.valueOf(1), retrieved.getVersion());
+        // The other step is untouched
+        assertEquals(Integer.valueOf(0), dao.getStepExecution(jobExecution, other.getId()).getVersion());
+    }
+
+    @Test
+    public void testConcurrentModificationException() {
+        dao.saveStepExecution(stepExecution);
+        StepExecution copy = dao.getStepExecution(jobExecution, stepExecution.getId());
+        dao.updateStepExecution(stepExecution);
+        try {
+            dao.updateStepExecution(copy);
+            fail("Expected OptimisticLockingFailureException");
+        } catch (OptimisticLockingFailureException e) {
+            assertTrue(e.getMessage().contains("current version is 1"));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUpdateUnsavedExecution() {
+        StepExecution saved = new StepExecution("bar", jobExecution);
+        saved.setStartTime(new Date());
+        dao.saveStepExecution(saved);
+        stepExecution.setId(4711L);
+        stepExecution.incrementVersion();
+        dao.updateStepExecution(stepExecution);
+    }
+
+    /**
+     * Updates of the job execution keep its steps, listings leave them out
+     */
+    @Test
+    public void testJobExecutionUpdatesKeepSteps() {
+        dao.saveStepExecution(stepExecution);
+        jobExecution.setStatus(BatchStatus.COMPLETED);
+        jobExecutionDao.updateJobExecution(jobExecution);
+
+        DBObject stored = mongoTemplate.getCollection(JobExecution.class.getSimpleName()).findOne();
+        assertEquals(1, ((List<?>) stored.get(MongoEmbeddedStepExecutionDao.STEP_EXECUTIONS_KEY)).size());
+        assertEquals(1, jobExecutionDao.findJobExecutions(jobExecution.getJobInstance()).size());
+        assertEquals(0, jobExecutionDao.getJobExecution(jobExecution.getId()).getStepExecutions().size());
+    }
+
+    /**
+     * The layout is selected on the factory bean
+     */
+    @Test
+    public void testFactoryBeanSelectsEmbeddedLayout() throws Exception {
+        MongoJobRepositoryFactoryBean factory = new MongoJobRepositoryFactoryBean();
+        factory.setTransactionManager(new ResourcelessTransactionManager());
+        factory.setJobInstanceDao(jobInstanceDao);
+        factory.setJobExecutionDao(jobExecutionDao);
+        factory.setStepExecutionDao(stepExecutionDao);
+        factory.setExecutionContextDao(executionContextDao);
+        factory.setEmbeddedStepExecutions(true);
+        factory.afterPropertiesSet();
+        JobRepository jobRepository = factory.getObject();
+
+        JobExecution execution = jobRepository.createJobExecution("embeddedJob", new JobParameters());
+        StepExecution step = execution.createStepExecution("step");
+        jobRepository.add(step);
+        step.setStatus(BatchStatus.COMPLETED);
+        jobRepository.update(step);
+
+        assertFalse(mongoTemplate.getDb().collectionExists(StepExecution.class.getSimpleName()));
+        StepExecution last = jobRepository.getLastStepExecution(execution.getJobInstance(), "step");
+        assertEquals(step.getId(), last.getId());
+        assertEquals(BatchStatus.COMPLETED, last.getStatus());
+    }
+
+    /**
+     * The id generator of the replaced DAO is kept, write-behind is refused
+     */
+    @Test
+    public void testFactoryBeanCarriesStepExecutionDaoSettings() throws Exception {
+        final List<String> sequences = new ArrayList<String>();
+        MongoStepExecutionDao stepDao = new MongoStepExecutionDao();
+        stepDao.setMongoTemplate(mongoTemplate);
+        stepDao.setIdGenerator(new MongoSequenceIdGenerator(mongoTemplate) {
+            @Override
+            public List<Long> getNextIds(String sequenceName, int count) {
+                sequences.add(sequenceName);
+                return super.getNextIds(sequenceName, count);
+            }
+        });
+        JobRepository jobRepository = embeddedRepository(stepDao).getObject();
+        JobExecution execution = jobRepository.createJobExecution("embeddedJob", new JobParameters());
+        jobRepository.add(execution.createStepExecution("step"));
+        assertEquals(1, sequences.size());
+
+        stepDao.setWriteBehindWindow(1000L);
+        try {
+            embeddedRepository(stepDao);
+            fail("Write-behind must be refused");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    private MongoJobRepositoryFactoryBean embeddedRepository(StepExecutionDao stepDao) throws Exception {
+        MongoJobRepositoryFactoryBean factory = new MongoJobRepositoryFactoryBean();
+        factory.setTransactionManager(new ResourcelessTransactionManager());
+        factory.setJobInstanceDao(jobInstanceDao);
+        factory.setJobExecutionDao(jobExecutionDao);
+        factory.setStepExecutionDao(stepDao);
+        factory.setExecutionContextDao(executionContextDao);
+        factory.setEmbeddedStepExecutions(true);
+        factory.afterPropertiesSet();
+        return factory;
+    }
+
+}
@@ -1,26 +1,51 @@
 package org.springframework.batch.mongodb.test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.springframework.batch.core.BatchStatus;
 import org.springframework.batch.core.JobExecution;
 import org.springframework.batch.core.JobInstance;
 import org.springframework.batch.core.JobParameters;
 import org.springframework.batch.core.StepExecution;
+import org.springframework.batch.core.repository.dao.DefaultExecutionContextSerializer;
 import org.springframework.batch.core.repository.dao.ExecutionContextDao;
 import org.springframework.batch.core.repository.dao.JobExecutionDao;
 import org.springframework.batch.core.repository.dao.JobInstanceDao;
 import org.springframework.batch.core.repository.dao.StepExecutionDao;
 import org.springframework.batch.item.ExecutionContext;
+import org.springframework.batch.mongodb.ExecutionContextCodec;
+import org.springframework.batch.mongodb.ExecutionContextCodecRegistry;
+import org.springframework.batch.mongodb.MongoExecutionContextDao;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.mongodb.core.MongoTemplate;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+
 
 /**
  * Test CRUD for ExecutionContext in Mongo DB
@@ -143,6 +168,431 @@ public class MongoExecutionContextDaoTests{
     }
 
     
+    /**
+     * Partition contexts are saved together with a single copy of the job
+     * context, saving them again replaces them.
+     */
+    @Test
+    public void testSaveExecutionContexts() {
+        jobExecution.getExecutionContext().put("jobKey", "jobValue");
+        List<StepExecution> partitions = new ArrayList<StepExecution>();
+        for (int i = 0; i < 1500; i++) {
+            StepExecution partition = new StepExecution("stepName:partition" + i, jobExecution);
+            partition.setStartTime(new Date());
+            partition.getExecutionContext().putInt("partition", i);
+            partitions.add(partition);
+        }
+        stepExecutionDao.saveStepExecutions(partitions);
+        executionContextDao.saveExecutionContexts(partitions);
+
+        DBCollection collection = mongoTemplate.getCollection(ExecutionContext.class.getSimpleName());
+        assertEquals(1501, collection.count());
+        assertEquals("jobValue", executionContextDao.getExecutionContext(jobExecution).getString("jobKey"));
+        assertEquals(1499, executionContextDao.getExecutionContext(partitions.get(1499)).getInt("partition"));
+
+        partitions.get(0).getExecutionContext().putInt("partition", -1);
+        executionContextDao.saveExecutionContexts(partitions);
+        assertEquals(1501, collection.count());
+        assertEquals(-1, executionContextDao.getExecutionContext(partitions.get(0)).getInt("partition"));
+    }
+
+    /**
+     * Keys named like the fields of the DAO or of Mongo are entries like any
+     * other, also when updated as a delta
+     */
+    @Test
+    public void testReservedKeyNames() {
+        ExecutionContext ctx = stepExecution.getExecutionContext();
+        for (String key : new String[] { MongoExecutionContextDao.VERSION_STAMP_KEY,
+                MongoExecutionContextDao.SERIALIZED_CONTEXT_KEY, MongoExecutionContextDao.DEFLATED_KEY,
+                MongoExecutionContextDao.GRIDFS_FILE_KEY, "_id", "_ns", "_reader.state" }) {
+            ctx.putString(key, "value of " + key);
+        }
+        executionContextDao.saveExecutionContext(stepExecution);
+        assertEquals(ctx, executionContextDao.getExecutionContext(stepExecution));
+
+        ctx.putString(MongoExecutionContextDao.VERSION_STAMP_KEY, "changed");
+        ctx.remove(MongoExecutionContextDao.GRIDFS_FILE_KEY);
+        executionContextDao.updateExecutionContext(stepExecution);
+        assertEquals(ctx, executionContextDao.getExecutionContext(stepExecution));
+    }
+
+    /**
+     * Previous partition contexts, the restart checkpoints, are kept when the
+     * new ones cannot be inserted
+     */
+    @Test
+    public void testSaveExecutionContextsFailureKeepsPreviousContexts() {
+        List<StepExecution> partitions = new ArrayList<StepExecution>();
+        for (int i = 0; i < 3; i++) {
+            StepExecution partition = new StepExecution("stepName:partition" + i, jobExecution);
+            partition.setStartTime(new Date());
+            partition.getExecutionContext().putInt("partition", i);
+            partitions.add(partition);
+        }
+        stepExecutionDao.saveStepExecutions(partitions);
+        executionContextDao.saveExecutionContexts(partitions);
+
+        MongoExecutionContextDao failingDao = new MongoExecutionContextDao() {
+            @Override
+            protected void insertInBatches(List<DBObject> objects) {
+                throw new MongoException("Network error");
+            }
+        };
+        failingDao.setMongoTemplate(mongoTemplate);
+        partitions.get(0).getExecutionContext().putInt("partition", -1);
+        try {
+            failingDao.saveExecutionContexts(partitions);
+            fail("Insert failure must be thrown");
+        } catch (MongoException e) {
+            // expected
+        }
+        assertEquals(0, executionContextDao.getExecutionContext(partitions.get(0)).getInt("partition"));
+        assertEquals(2, executionContextDao.getExecutionContext(partitions.get(2)).getInt("partition"));
+    }
+
+    /**
+     * Updates only send the keys that changed, a DAO without the last written
+     * state rewrites the whole context.
+     */
+    @Test
+    public void testUpdateSendsChangedKeysOnly() {
+        ExecutionContext ctx = stepExecution.getExecutionContext();
+        ctx.putString("reader.state", "state");
+        ctx.putLong("reader.position", 1L);
+        ctx.putString("obsolete", "value");
+        executionContextDao.saveExecutionContext(stepExecution);
+
+        DBCollection collection = mongoTemplate.getCollection(ExecutionContext.class.getSimpleName());
+        DBObject query = new BasicDBObject(MongoExecutionContextDao.STEP_EXECUTION_ID_KEY, stepExecution.getId());
+        // Only to tell which keys were sent: a write that keeps the version
+        // stamp is not noticed, so the unchanged key is not written back
+        collection.update(query, new BasicDBObject("$set", new BasicDBObject("reader{dot}state", "unsent")));
+
+        ctx.putLong("reader.position", 2L);
+        ctx.remove("obsolete");
+        executionContextDao.updateExecutionContext(stepExecution);
+        ExecutionContext retrieved = executionContextDao.getExecutionContext(stepExecution);
+        assertEquals(2L, retrieved.getLong("reader.position"));
+        assertEquals("unsent", retrieved.getString("reader.state"));
+        assertFalse(retrieved.containsKey("obsolete"));
+    }
+
+    /**
+     * A context written since, e.g. by another node, is not merged with a
+     * delta but written whole
+     */
+    @Test
+    public void testUpdateAfterExternalWrite() {
+        ExecutionContext ctx = stepExecution.getExecutionContext();
+        ctx.putString("reader.state", "state");
+        ctx.putLong("reader.position", 1L);
+        executionContextDao.saveExecutionContext(stepExecution);
+
+        MongoExecutionContextDao otherDao = new MongoExecutionContextDao();
+        otherDao.setMongoTemplate(mongoTemplate);
+        StepExecution otherStepExecution = new StepExecution(stepExecution.getStepName(),
+                stepExecution.getJobExecution(), stepExecution.getId());
+        otherStepExecution.getExecutionContext().putString("reader.state", "other");
+        otherStepExecution.getExecutionContext().putString("other", "value");
+        otherDao.updateExecutionContext(otherStepExecution);
+
+        ctx.putLong("reader.position", 2L);
+        executionContextDao.updateExecutionContext(stepExecution);
+        assertEquals(ctx, executionContextDao.getExecutionContext(stepExecution));
+
+        ctx.putLong("reader.position", 3L);
+        executionContextDao.updateExecutionContext(stepExecution);
+        assertEquals(ctx, otherDao.getExecutionContext(stepExecution));
+    }
+
+    /**
+     * The whole context is written again if its document disappeared
+     */
+    @Test
+    public void testUpdateOfRemovedContext() {
+        ExecutionContext ctx = stepExecution.getExecutionContext();
+        ctx.putString("key", "value");
+        executionContextDao.saveExecutionContext(stepExecution);
+        mongoTemplate.getCollection(ExecutionContext.class.getSimpleName()).drop();
+
+        ctx.putString("other", "value");
+        executionContextDao.updateExecutionContext(stepExecution);
+        assertEquals(ctx, executionContextDao.getExecutionContext(stepExecution));
+    }
+
+    /**
+     * With a serializer the context is one binary field, deflated above the
+     * threshold, and holds values BSON has no type for
+     */
+    @Test
+    public void testSerializedContexts() {
+        MongoExecutionContextDao serializingDao = new MongoExecutionContextDao();
+        serializingDao.setMongoTemplate(mongoTemplate);
+        serializingDao.setSerializer(new DefaultExecutionContextSerializer());
+        DBCollection collection = mongoTemplate.getCollection(ExecutionContext.class.getSimpleName());
+        DBObject query = new BasicDBObject(MongoExecutionContextDao.STEP_EXECUTION_ID_KEY, stepExecution.getId());
+
+        for (int size : new int[] { 1024, 100 * 1024, 5 * 1024 * 1024 }) {
+            StringBuilder payload = new StringBuilder(size);
+            for (int i = 0; payload.length() < size; i++) {
+                payload.append("line ").append(i).append(';');
+            }
+            ExecutionContext ctx = new ExecutionContext();
+            ctx.putString("reader.payload", payload.toString());
+            ctx.put("position", new Position(size));
+            ctx.put("amount", new BigDecimal("12.50"));
+            stepExecution.setExecutionContext(ctx);
+            serializingDao.updateExecutionContext(stepExecution);
+
+            assertEquals(ctx, serializingDao.getExecutionContext(stepExecution));
+            DBObject stored = collection.findOne(query);
+            assertEquals(5, stored.keySet().size());
+            byte[] bytes = (byte[]) stored.get(MongoExecutionContextDao.SERIALIZED_CONTEXT_KEY);
+            boolean deflated = (Boolean) stored.get(MongoExecutionContextDao.DEFLATED_KEY);
+            assertEquals(size > 1024, deflated);
+            if (deflated) {
+                assertTrue(bytes.length < size / 4);
+            }
+        }
+    }
+
+    /**
+     * Contexts stored one field per entry are still read once a serializer is set
+     */
+    @Test
+    public void testSerializerReadsFieldContexts() {
+        stepExecution.getExecutionContext().putString("reader.state", "state");
+        executionContextDao.saveExecutionContext(stepExecution);
+
+        MongoExecutionContextDao serializingDao = new MongoExecutionContextDao();
+        serializingDao.setMongoTemplate(mongoTemplate);
+        serializingDao.setSerializer(new DefaultExecutionContextSerializer());
+        assertEquals(stepExecution.getExecutionContext(), serializingDao.getExecutionContext(stepExecution));
+    }
+
+    /**
+     * A large context of values BSON has no type for round trips, also
+     * through a delta update
+     */
+    @Test
+    public void testTypedValues() {
+        ExecutionContext ctx = stepExecution.getExecutionContext();
+        for (int i = 0; i < 100; i++) {
+            ctx.putString("reader.key" + i, "value" + i);
+            ctx.putLong("long" + i, i);
+            ctx.putInt("int" + i, i);
+            ctx.putDouble("double" + i, i / 3d);
+            ctx.put("date" + i, new Date(i));
+            ctx.put("decimal.amount" + i, new BigDecimal("12345678901234567890.0" + i));
+            ctx.put("bigInteger" + i, BigInteger.valueOf(Long.MAX_VALUE).multiply(BigInteger.valueOf(i)));
+            ctx.put("short" + i, (short) i);
+            ctx.put("float" + i, i / 3f);
+            ctx.put("status" + i, BatchStatus.values()[i % BatchStatus.values().length]);
+        }
+        // A constant with a body is an anonymous subclass
+        ctx.put("unit", TimeUnit.SECONDS);
+        ctx.put("seen", new TreeSet<String>(Arrays.asList("b", "a")));
+        ctx.put("ids", new HashSet<Long>(Arrays.asList(1L, 2L)));
+        ctx.put("list", new ArrayList<String>(Arrays.asList("x", "y")));
+        assertEquals(1004, ctx.size());
+        executionContextDao.saveExecutionContext(stepExecution);
+
+        ExecutionContext retrieved = executionContextDao.getExecutionContext(stepExecution);
+        assertEquals(ctx, retrieved);
+        assertTrue(retrieved.get("seen") instanceof TreeSet);
+
+        ctx.put("decimal.amount0", new BigDecimal("0.10"));
+        ctx.put("status1", BatchStatus.FAILED);
+        executionContextDao.updateExecutionContext(stepExecution);
+        assertEquals(ctx, executionContextDao.getExecutionContext(stepExecution));
+    }
+
+    /**
+     * Application types get a codec of their own
+     */
+    @Test
+    public void testRegisteredCodec() {
+        ExecutionContextCodecRegistry registry = new ExecutionContextCodecRegistry();
+        registry.register(Position.class, new ExecutionContextCodec() {
+
+            public Object encode(Object value) {
+                return ((Position) value).offset;
+            }
+
+            public Object decode(Object stored, Class<?> type) {
+                return new Position((Long) stored);
+            }
+        });
+        MongoExecutionContextDao dao = new MongoExecutionContextDao();
+        dao.setMongoTemplate(mongoTemplate);
+        dao.setCodecRegistry(registry);
+        stepExecution.getExecutionContext().put("reader.position", new Position(42));
+        dao.saveExecutionContext(stepExecution);
+
+        assertEquals(stepExecution.getExecutionContext(), dao.getExecutionContext(stepExecution));
+    }
+
+    /**
+     * Cached contexts are returned while their version stamp is unchanged,
+     * writes of this and of other DAOs are seen
+     */
+    @Test
+    public void testNearCache() {
+        MongoExecutionContextDao cachingDao = new MongoExecutionContextDao();
+        cachingDao.setMongoTemplate(mongoTemplate);
+        cachingDao.setNearCacheSize(1024 * 1024);
+        ExecutionContext ctx = stepExecution.getExecutionContext();
+        ctx.putString("reader.state", "first");
+        ctx.put("seen", new HashSet<String>(Arrays.asList("a")));
+        cachingDao.saveExecutionContext(stepExecution);
+        assertEquals(ctx, cachingDao.getExecutionContext(stepExecution));
+
+        DBCollection collection = mongoTemplate.getCollection(ExecutionContext.class.getSimpleName());
+        DBObject query = new BasicDBObject(MongoExecutionContextDao.STEP_EXECUTION_ID_KEY, stepExecution.getId());
+        // Changed behind the DAO's back, without a new stamp: the cached copy is returned
+        collection.update(query, new BasicDBObject("$set", new BasicDBObject("reader{dot}state", "behind")));
+        ExecutionContext cached = cachingDao.getExecutionContext(stepExecution);
+        assertEquals("first", cached.getString("reader.state"));
+        // Callers get copies
+        cached.putString("reader.state", "changed");
+        ((Set<?>) cached.get("seen")).clear();
+        assertEquals(ctx, cachingDao.getExecutionContext(stepExecution));
+
+        // Written by another node
+        ctx.putString("reader.state", "second");
+        executionContextDao.updateExecutionContext(stepExecution);
+        assertEquals(ctx, cachingDao.getExecutionContext(stepExecution));
+
+        // Written by this DAO
+        ctx.putString("reader.state", "third");
+        cachingDao.updateExecutionContext(stepExecution);
+        collection.update(query, new BasicDBObject("$set", new BasicDBObject("reader{dot}state", "fourth")));
+        assertEquals("fourth", cachingDao.getExecutionContext(stepExecution).getString("reader.state"));
+    }
+
+    /**
+     * Contexts larger than the cache are not kept
+     */
+    @Test
+    public void testNearCacheSize() {
+        MongoExecutionContextDao cachingDao = new MongoExecutionContextDao();
+        cachingDao.setMongoTemplate(mongoTemplate);
+        cachingDao.setNearCacheSize(1024);
+        StringBuilder state = new StringBuilder();
+        while (state.length() < 2048) {
+            state.append("state");
+        }
+        stepExecution.getExecutionContext().putString("state", state.toString());
+        cachingDao.saveExecutionContext(stepExecution);
+        cachingDao.getExecutionContext(stepExecution);
+
+        DBCollection collection = mongoTemplate.getCollection(ExecutionContext.class.getSimpleName());
+        DBObject query = new BasicDBObject(MongoExecutionContextDao.STEP_EXECUTION_ID_KEY, stepExecution.getId());
+        collection.update(query, new BasicDBObject("$set", new BasicDBObject("state", "behind")));
+        assertEquals("behind", cachingDao.getExecutionContext(stepExecution).getString("state"));
+    }
+
+    /**
+     * Contexts beyond the document size limit go to GridFS, the inline
+     * document only references them
+     */
+    @Test
+    public void testSpillToGridFs() {
+        ExecutionContext ctx = stepExecution.getExecutionContext();
+        StringBuilder seenKeys = new StringBuilder();
+        for (int i = 0; seenKeys.length() < 17 * 1024 * 1024; i++) {
+            seenKeys.append("key").append(i).append(',');
+        }
+        ctx.putString("reader.seen", seenKeys.toString());
+        ctx.putLong("reader.offset", 1L);
+        executionContextDao.saveExecutionContext(stepExecution);
+
+        DBCollection collection = mongoTemplate.getCollection(ExecutionContext.class.getSimpleName());
+        DBCollection files = mongoTemplate.getCollection(ExecutionContext.class.getSimpleName() + ".files");
+        DBObject query = new BasicDBObject(MongoExecutionContextDao.STEP_EXECUTION_ID_KEY, stepExecution.getId());
+        assertTrue(collection.findOne(query).containsField(MongoExecutionContextDao.GRIDFS_FILE_KEY));
+        assertEquals(ctx, executionContextDao.getExecutionContext(stepExecution));
+
+        ctx.putLong("reader.offset", 2L);
+        executionContextDao.updateExecutionContext(stepExecution);
+        assertEquals(1, files.count());
+        assertEquals(2L, executionContextDao.getExecutionContext(stepExecution).getLong("reader.offset"));
+
+        // Back inline once it is small again, also when written by a DAO
+        // that never saw the spilled context
+        MongoExecutionContextDao otherDao = new MongoExecutionContextDao();
+        otherDao.setMongoTemplate(mongoTemplate);
+        ctx.remove("reader.seen");
+        otherDao.updateExecutionContext(stepExecution);
+        assertFalse(collection.findOne(query).containsField(MongoExecutionContextDao.GRIDFS_FILE_KEY));
+        assertEquals(0, files.count());
+        assertEquals(ctx, executionContextDao.getExecutionContext(stepExecution));
+    }
+
+    /**
+     * Serialized contexts and partition contexts spill too
+     */
+    @Test
+    public void testSpillSerializedPartitionContexts() {
+        MongoExecutionContextDao serializingDao = new MongoExecutionContextDao();
+        serializingDao.setMongoTemplate(mongoTemplate);
+        serializingDao.setSerializer(new DefaultExecutionContextSerializer());
+        serializingDao.setCompressionThreshold(0);
+        serializingDao.setSpillThreshold(1024);
+        Random random = new Random(42);
+        List<StepExecution> partitions = new ArrayList<StepExecution>();
+        for (int i = 0; i < 3; i++) {
+            StepExecution partition = new StepExecution("stepName:partition" + i, jobExecution);
+            partition.setStartTime(new Date());
+            // Incompressible, the second partition is above the threshold
+            byte[] state = new byte[i == 1 ? 100 * 1024 : 16];
+            random.nextBytes(state);
+            partition.getExecutionContext().put("state", state);
+            partitions.add(partition);
+        }
+        stepExecutionDao.saveStepExecutions(partitions);
+        serializingDao.saveExecutionContexts(partitions);
+        serializingDao.saveExecutionContexts(partitions);
+
+        DBCollection files = mongoTemplate.getCollection(ExecutionContext.class.getSimpleName() + ".files");
+        assertEquals(1, files.count());
+        for (StepExecution partition : partitions) {
+            byte[] expected = (byte[]) partition.getExecutionContext().get("state");
+            byte[] actual = (byte[]) serializingDao.getExecutionContext(partition).get("state");
+            assertTrue(Arrays.equals(expected, actual));
+        }
+
+        MongoExecutionContextDao otherDao = new MongoExecutionContextDao();
+        otherDao.setMongoTemplate(mongoTemplate);
+        otherDao.setSerializer(new DefaultExecutionContextSerializer());
+        partitions.get(1).getExecutionContext().put("state", new byte[16]);
+        otherDao.saveExecutionContexts(partitions);
+        assertEquals(0, files.count());
+        assertEquals(16, ((byte[]) otherDao.getExecutionContext(partitions.get(1)).get("state")).length);
+    }
+
+    private static class Position implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final long offset;
+
+        private Position(long offset) {
+            this.offset = offset;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Position && ((Position) other).offset == offset;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) offset;
+        }
+    }
+
     @Test
     public void testStoreInteger() {
 
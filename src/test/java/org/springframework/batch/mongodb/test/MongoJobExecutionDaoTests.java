@@ -1,14 +1,18 @@
 package org.springframework.batch.mongodb.test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -22,6 +26,8 @@ import org.springframework.batch.core.StepExecution;
 import org.springframework.batch.core.repository.dao.JobExecutionDao;
 import org.springframework.batch.core.repository.dao.JobInstanceDao;
 import org.springframework.batch.core.repository.dao.StepExecutionDao;
+import org.springframework.batch.mongodb.KeysetPage;
+import org.springframework.batch.mongodb.MongoJobExecutionDao;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.dao.OptimisticLockingFailureException;
 import org.springframework.data.mongodb.core.MongoTemplate;
@@ -29,6 +35,11 @@ import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 import org.springframework.util.Assert;
 
+import com.mongodb.BasicDBObject;
+import com.mongodb.BasicDBObjectBuilder;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+
 @RunWith(SpringJUnit4ClassRunner.class)
 @ContextConfiguration(locations = {
 	    "classpath:spring/batch/config/test-context.xml"})
@@ -107,6 +118,48 @@ public class MongoJobExecutionDaoTests{
 
     }
 
+    @Test
+    public void testFindJobExecutionPages() {
+        for (int i = 0; i < 5; i++) {
+            jobExecutionDao.saveJobExecution(new JobExecution(jobInstance, null));
+        }
+        MongoJobExecutionDao dao = (MongoJobExecutionDao) jobExecutionDao;
+
+        List<JobExecution> all = jobExecutionDao.findJobExecutions(jobInstance);
+        KeysetPage<JobExecution> first = dao.findJobExecutionPage(jobInstance, null, 3);
+        assertEquals(all.subList(0, 3), first.getContent());
+        assertTrue(first.hasNext());
+
+        KeysetPage<JobExecution> second = dao.findJobExecutionPage(jobInstance, first.getContinuationToken(), 3);
+        assertEquals(all.subList(3, 5), second.getContent());
+        assertFalse(second.hasNext());
+        assertEquals(jobInstance, second.getContent().get(0).getJobInstance());
+    }
+
+    /**
+     * Parameters are loaded once per listing, not once per execution
+     */
+    @Test
+    public void testFindJobExecutionsLoadsParametersOnce() {
+        final AtomicInteger parameterQueries = new AtomicInteger();
+        MongoJobExecutionDao dao = new MongoJobExecutionDao() {
+            @Override
+            protected JobParameters getJobParameters(Long jobInstanceId, MongoTemplate mongoTemplate) {
+                parameterQueries.incrementAndGet();
+                return super.getJobParameters(jobInstanceId, mongoTemplate);
+            }
+        };
+        dao.setMongoTemplate(mongoTemplate);
+        for (int i = 0; i < 50; i++) {
+            dao.saveJobExecution(new JobExecution(jobInstance, null));
+        }
+
+        List<JobExecution> executions = dao.findJobExecutions(jobInstance);
+        assertEquals(50, executions.size());
+        assertEquals(1, parameterQueries.get());
+        assertEquals(new JobParameters(), executions.get(49).getJobParameters());
+    }
+
     /**
      * Save and find a job execution.
      */
@@ -211,6 +264,71 @@ public class MongoJobExecutionDaoTests{
 
     }
 
+    /**
+     * Running executions are found by the job name stored on them, executions
+     * saved without it are completed on the first startup.
+     */
+    @Test
+    public void testFindRunningExecutionsByStoredJobName() {
+        JobExecution running = new JobExecution(jobInstance, null);
+        jobExecutionDao.saveJobExecution(running);
+
+        JobInstance otherInstance = jobInstanceDao.createJobInstance("Job2", new JobParameters());
+        JobExecution other = new JobExecution(otherInstance, null);
+        jobExecutionDao.saveJobExecution(other);
+
+        JobExecution ended = new JobExecution(jobInstance, null);
+        jobExecutionDao.saveJobExecution(ended);
+        ended.setEndTime(new Date());
+        jobExecutionDao.updateJobExecution(ended);
+
+        DBCollection collection = mongoTemplate.getCollection(JobExecution.class.getSimpleName());
+        assertEquals("Job1", collection.findOne(new BasicDBObject(MongoJobExecutionDao.JOB_EXECUTION_ID_KEY,
+                running.getId())).get(MongoJobExecutionDao.JOB_NAME_KEY));
+
+        // As written before the job name and running flag were stored
+        collection.update(new BasicDBObject(), new BasicDBObject("$unset", BasicDBObjectBuilder.start()
+                .add(MongoJobExecutionDao.JOB_NAME_KEY, 1).add(MongoJobExecutionDao.RUNNING_KEY, 1).get()),
+                false, true);
+        assertEquals(0, jobExecutionDao.findRunningJobExecutions("Job1").size());
+
+        ((MongoJobExecutionDao) jobExecutionDao).init();
+
+        Set<JobExecution> values = jobExecutionDao.findRunningJobExecutions("Job1");
+        assertEquals(1, values.size());
+        assertEquals(running.getId(), values.iterator().next().getId());
+        values = jobExecutionDao.findRunningJobExecutions("Job2");
+        assertEquals(1, values.size());
+        assertEquals(other.getId(), values.iterator().next().getId());
+
+        // Later startups do not scan the executions again
+        collection.update(new BasicDBObject(), new BasicDBObject("$unset", BasicDBObjectBuilder.start()
+                .add(MongoJobExecutionDao.JOB_NAME_KEY, 1).add(MongoJobExecutionDao.RUNNING_KEY, 1).get()),
+                false, true);
+        ((MongoJobExecutionDao) jobExecutionDao).init();
+        assertEquals(0, jobExecutionDao.findRunningJobExecutions("Job1").size());
+    }
+
+    /**
+     * Last execution lookups and status polling are served by indexes
+     */
+    @Test
+    public void testLookupIndexes() {
+        // Dropped with the database before each test
+        ((MongoJobExecutionDao) jobExecutionDao).init();
+        boolean createTimeIndex = false;
+        boolean statusIndex = false;
+        for (DBObject index : mongoTemplate.getCollection(JobExecution.class.getSimpleName()).getIndexInfo()) {
+            List<String> key = new ArrayList<String>(((DBObject) index.get("key")).keySet());
+            createTimeIndex |= key.equals(Arrays.asList(MongoJobExecutionDao.JOB_INSTANCE_ID_KEY,
+                    MongoJobExecutionDao.CREATE_TIME_KEY));
+            statusIndex |= key.equals(Arrays.asList(MongoJobExecutionDao.JOB_EXECUTION_ID_KEY,
+                    MongoJobExecutionDao.VERSION_KEY, MongoJobExecutionDao.STATUS_KEY));
+        }
+        assertTrue(createTimeIndex);
+        assertTrue(statusIndex);
+    }
+
     /**
      * Check the execution is returned
      */
@@ -275,6 +393,46 @@ public class MongoJobExecutionDaoTests{
         jobExecutionDao.updateJobExecution(exec2);
     }
 
+    /**
+     * Executions of different jobs are updated in parallel, each update
+     * still being checked against the version.
+     */
+    @Test
+    public void testConcurrentUpdatesOfDifferentExecutions() throws Exception {
+        final List<JobExecution> executions = new ArrayList<JobExecution>();
+        for (int i = 0; i < 8; i++) {
+            JobExecution exec = new JobExecution(jobInstance, null);
+            jobExecutionDao.saveJobExecution(exec);
+            executions.add(exec);
+        }
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        Thread[] threads = new Thread[executions.size()];
+        for (int t = 0; t < threads.length; t++) {
+            final JobExecution exec = executions.get(t);
+            threads[t] = new Thread() {
+                public void run() {
+                    try {
+                        for (int i = 0; i < 20; i++) {
+                            exec.setLastUpdated(new Date(i));
+                            jobExecutionDao.updateJobExecution(exec);
+                        }
+                    } catch (Throwable e) {
+                        errors.add(e);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(errors.toString(), errors.isEmpty());
+        for (JobExecution exec : executions) {
+            assertEquals(Integer.valueOf(20), exec.getVersion());
+            assertEquals(Integer.valueOf(20), jobExecutionDao.getJobExecution(exec.getId()).getVersion());
+        }
+    }
+
     /**
      * Successful synchronization from STARTED to STOPPING status.
      */
@@ -5,11 +5,19 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.math.BigInteger;
 import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -18,13 +26,21 @@ import org.springframework.batch.core.JobExecution;
 import org.springframework.batch.core.JobInstance;
 import org.springframework.batch.core.JobParameters;
 import org.springframework.batch.core.JobParametersBuilder;
+import org.springframework.batch.core.launch.NoSuchJobException;
 import org.springframework.batch.core.repository.dao.JobExecutionDao;
 import org.springframework.batch.core.repository.dao.JobInstanceDao;
+import org.springframework.batch.mongodb.KeysetPage;
+import org.springframework.batch.mongodb.MongoJobInstanceDao;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.mongodb.core.MongoTemplate;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+
 @RunWith(SpringJUnit4ClassRunner.class)
 @ContextConfiguration(locations = {
 	    "classpath:spring/batch/config/test-context.xml"})
@@ -49,7 +65,9 @@ public class MongoJobInstanceDaoTests {
 
     @Before
     public void onSetUp() throws Exception {
-        mongoTemplate.getDb().dropDatabase();        
+        mongoTemplate.getDb().dropDatabase();
+        // The unique job key index goes with the database
+        ((MongoJobInstanceDao) jobInstanceDao).init();
     }
 
     /*
@@ -130,6 +148,75 @@ public class MongoJobInstanceDaoTests {
 
     }
 
+    @Test
+    public void testJobNamesCatalog() throws Exception {
+        jobInstanceDao.createJobInstance("zJob", new JobParameters());
+        jobInstanceDao.createJobInstance(fooJob, new JobParameters());
+        jobInstanceDao.createJobInstance(fooJob, fooParams);
+
+        assertEquals(Arrays.asList(fooJob, "zJob"), jobInstanceDao.getJobNames());
+        assertEquals(2, jobInstanceDao.getJobInstanceCount(fooJob));
+        assertNotNull(((MongoJobInstanceDao) jobInstanceDao).getLastLaunchTime(fooJob));
+        assertNull(((MongoJobInstanceDao) jobInstanceDao).getLastLaunchTime("no-such-job"));
+    }
+
+    /**
+     * A database without catalog gets it built from its instances
+     */
+    @Test
+    public void testJobNamesCatalogIsBuiltFromInstances() throws Exception {
+        jobInstanceDao.createJobInstance("zJob", new JobParameters());
+        jobInstanceDao.createJobInstance(fooJob, new JobParameters());
+        jobInstanceDao.createJobInstance(fooJob, fooParams);
+        dropJobNamesCatalog();
+
+        MongoJobInstanceDao dao = new MongoJobInstanceDao();
+        dao.setMongoTemplate(mongoTemplate);
+        assertEquals(2, dao.getJobInstanceCount(fooJob));
+        assertEquals(Arrays.asList(fooJob, "zJob"), dao.getJobNames());
+    }
+
+    /**
+     * Instances of a database without catalog are counted before the first
+     * launch adds to the catalog, whether or not the DAO was initialized
+     */
+    @Test
+    public void testJobNamesCatalogIsBuiltBeforeLaunch() throws Exception {
+        jobInstanceDao.createJobInstance("zJob", new JobParameters());
+        jobInstanceDao.createJobInstance(fooJob, new JobParameters());
+        dropJobNamesCatalog();
+
+        MongoJobInstanceDao dao = new MongoJobInstanceDao();
+        dao.setMongoTemplate(mongoTemplate);
+        dao.createJobInstance(fooJob, fooParams);
+        dao.createJobInstance("newJob", new JobParameters());
+        assertEquals(Arrays.asList(fooJob, "newJob", "zJob"), dao.getJobNames());
+        assertEquals(2, dao.getJobInstanceCount(fooJob));
+        assertEquals(1, dao.getJobInstanceCount("zJob"));
+
+        jobInstanceDao.createJobInstance("zJob", fooParams);
+        dropJobNamesCatalog();
+        dao = new MongoJobInstanceDao();
+        dao.setMongoTemplate(mongoTemplate);
+        dao.init();
+        dao.createJobInstance(fooJob, new JobParametersBuilder().addLong("run", 3L).toJobParameters());
+        assertEquals(Arrays.asList(fooJob, "newJob", "zJob"), dao.getJobNames());
+        assertEquals(3, dao.getJobInstanceCount(fooJob));
+        assertEquals(2, dao.getJobInstanceCount("zJob"));
+
+        // Later startups keep the catalog as it is
+        dao = new MongoJobInstanceDao();
+        dao.setMongoTemplate(mongoTemplate);
+        dao.init();
+        assertEquals(3, dao.getJobInstanceCount(fooJob));
+    }
+
+    // As written before the catalog existed
+    private void dropJobNamesCatalog() {
+        mongoTemplate.getCollection(MongoJobInstanceDao.JOB_NAMES_COLLECTION_NAME).drop();
+        mongoTemplate.getCollection(MongoJobInstanceDao.MIGRATIONS_COLLECTION_NAME).drop();
+    }
+
     /**
      * Create and retrieve a job instance.
      *
@@ -204,6 +291,99 @@ public class MongoJobInstanceDaoTests {
 
     }
 
+    @Test
+    public void testFindJobInstancesByName() throws Exception {
+        for (long i = 0; i < 5; i++) {
+            jobInstanceDao.createJobInstance(fooJob, new JobParametersBuilder().addLong("run", i).toJobParameters());
+        }
+        jobInstanceDao.createJobInstance("foo.bar", new JobParameters());
+        jobInstanceDao.createJobInstance("anotherJob", new JobParameters());
+
+        List<JobInstance> jobInstances = jobInstanceDao.findJobInstancesByName(fooJob, 1, 3);
+        assertEquals(3, jobInstances.size());
+        assertTrue(jobInstances.get(0).getId() > jobInstances.get(1).getId());
+        for (JobInstance jobInstance : jobInstances) {
+            assertEquals(fooJob, jobInstance.getJobName());
+        }
+
+        assertEquals(6, jobInstanceDao.findJobInstancesByName("foo*", 0, 10).size());
+        assertEquals(1, jobInstanceDao.findJobInstancesByName("foo.*", 0, 10).size());
+        assertEquals(0, jobInstanceDao.findJobInstancesByName("fo", 0, 10).size());
+    }
+
+    @Test
+    public void testGetJobInstancePages() throws Exception {
+        for (long i = 0; i < 7; i++) {
+            jobInstanceDao.createJobInstance(fooJob, new JobParametersBuilder().addLong("run", i).toJobParameters());
+        }
+        jobInstanceDao.createJobInstance("anotherJob", new JobParameters());
+        MongoJobInstanceDao dao = (MongoJobInstanceDao) jobInstanceDao;
+
+        List<JobInstance> all = jobInstanceDao.getJobInstances(fooJob, 0, 10);
+        List<JobInstance> paged = new ArrayList<JobInstance>();
+        KeysetPage<JobInstance> page = dao.getJobInstancePage(fooJob, null, 3);
+        paged.addAll(page.getContent());
+        while (page.hasNext()) {
+            page = dao.getJobInstancePage(fooJob, page.getContinuationToken(), 3);
+            paged.addAll(page.getContent());
+        }
+        assertEquals(1, page.getContent().size());
+        assertEquals(all, paged);
+
+        assertEquals(all.subList(3, 5), dao.getJobInstancesAfter(fooJob, all.get(2).getId(), 2));
+    }
+
+    /**
+     * Listing instances does not read their parameters row by row
+     */
+    @Test
+    public void testListingDoesNotLoadJobParameters() throws Exception {
+        final AtomicInteger parameterQueries = new AtomicInteger();
+        MongoJobInstanceDao dao = new MongoJobInstanceDao() {
+            @Override
+            protected JobParameters getJobParameters(Long jobInstanceId, MongoTemplate mongoTemplate) {
+                parameterQueries.incrementAndGet();
+                return super.getJobParameters(jobInstanceId, mongoTemplate);
+            }
+
+            @Override
+            protected Map<Long, JobParameters> getJobParameters(Collection<Long> jobInstanceIds, MongoTemplate mongoTemplate) {
+                parameterQueries.incrementAndGet();
+                return super.getJobParameters(jobInstanceIds, mongoTemplate);
+            }
+        };
+        dao.setMongoTemplate(mongoTemplate);
+        List<Long> ids = new ArrayList<Long>();
+        for (long i = 0; i < 100; i++) {
+            ids.add(dao.createJobInstance(fooJob, new JobParametersBuilder().addLong("run", i).toJobParameters()).getId());
+        }
+
+        assertEquals(100, dao.getJobInstances(fooJob, 0, 100).size());
+        assertEquals(100, dao.findJobInstancesByName(fooJob, 0, 100).size());
+        assertNotNull(dao.getJobInstance(ids.get(0)));
+        assertEquals(0, parameterQueries.get());
+
+        Map<Long, JobParameters> parameters = dao.getJobParameters(ids);
+        assertEquals(1, parameterQueries.get());
+        assertEquals(100, parameters.size());
+        assertEquals(Long.valueOf(7), parameters.get(ids.get(7)).getLong("run"));
+    }
+
+    @Test
+    public void testGetJobInstanceCount() throws Exception {
+        for (long i = 0; i < 5; i++) {
+            jobInstanceDao.createJobInstance(fooJob, new JobParametersBuilder().addLong("run", i).toJobParameters());
+        }
+        jobInstanceDao.createJobInstance("anotherJob", new JobParameters());
+
+        assertEquals(5, jobInstanceDao.getJobInstanceCount(fooJob));
+    }
+
+    @Test(expected = NoSuchJobException.class)
+    public void testGetJobInstanceCountForMissingJob() throws Exception {
+        jobInstanceDao.getJobInstanceCount("no-such-job");
+    }
+
     /**
      * Trying to create instance twice for the same job+parameters causes error
      */
@@ -214,7 +394,155 @@ public class MongoJobInstanceDaoTests {
         jobInstanceDao.createJobInstance(fooJob, fooParams);
     }
 
-    
+    /**
+     * Duplicates are rejected by the unique (jobName, jobKey) index
+     */
+    @Test
+    public void testCreateDuplicateInstanceRejectedByIndex() {
+        jobInstanceDao.createJobInstance(fooJob, fooParams);
+
+        boolean uniqueIndex = false;
+        for (DBObject index : mongoTemplate.getCollection(JobInstance.class.getSimpleName()).getIndexInfo()) {
+            DBObject key = (DBObject) index.get("key");
+            if (key.containsField(MongoJobInstanceDao.JOB_NAME_KEY) && key.containsField(MongoJobInstanceDao.JOB_KEY_KEY)) {
+                uniqueIndex = Boolean.TRUE.equals(index.get("unique"));
+            }
+        }
+        assertTrue(uniqueIndex);
+
+        try {
+            jobInstanceDao.createJobInstance(fooJob, fooParams);
+            fail("Duplicate JobInstance must be rejected");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getCause() instanceof MongoException.DuplicateKey);
+        }
+        assertEquals(1, mongoTemplate.getCollection(JobInstance.class.getSimpleName()).count());
+    }
+
+    /**
+     * Without the unique index, e.g. because of existing duplicates, the index
+     * is tried once and duplicate instances are looked up before inserting
+     */
+    @Test
+    public void testCreateWithoutUniqueIndex() {
+        mongoTemplate.getDb().dropDatabase();
+        final AtomicInteger attempts = new AtomicInteger();
+        MongoJobInstanceDao dao = new MongoJobInstanceDao() {
+            @Override
+            protected boolean createJobKeyIndex() {
+                attempts.incrementAndGet();
+                return false;
+            }
+        };
+        dao.setMongoTemplate(mongoTemplate);
+        dao.init();
+
+        dao.createJobInstance(fooJob, fooParams);
+        try {
+            dao.createJobInstance(fooJob, fooParams);
+            fail("Duplicate JobInstance must be rejected");
+        } catch (IllegalStateException e) {
+            // Found by the lookup, not by the index
+            assertNull(e.getCause());
+        }
+        dao.createJobInstance(fooJob, new JobParameters());
+        assertEquals(1, attempts.get());
+
+        assertFalse(dao.checkJobKeyIndex());
+        assertEquals(2, attempts.get());
+    }
+
+    @Test
+    public void testJobInstanceCache() {
+        MongoJobInstanceDao dao = (MongoJobInstanceDao) jobInstanceDao;
+        dao.setJobInstanceCacheSize(10);
+        try {
+            JobInstance fooInstance = jobInstanceDao.createJobInstance(fooJob, fooParams);
+            long hits = dao.getCacheHitCount();
+
+            // Served from the cache even though the document is gone
+            mongoTemplate.getCollection(JobInstance.class.getSimpleName()).drop();
+            assertEquals(fooInstance, jobInstanceDao.getJobInstance(fooJob, fooParams));
+            assertEquals(hits + 1, dao.getCacheHitCount());
+
+            long misses = dao.getCacheMissCount();
+            assertNull(jobInstanceDao.getJobInstance(fooJob, new JobParameters()));
+            assertEquals(misses + 1, dao.getCacheMissCount());
+        } finally {
+            dao.setJobInstanceCacheSize(0);
+        }
+    }
+
+    @Test
+    public void testJobKeyFilter() {
+        MongoJobInstanceDao dao = (MongoJobInstanceDao) jobInstanceDao;
+        JobInstance fooInstance = jobInstanceDao.createJobInstance(fooJob, fooParams);
+        dao.setJobKeyFilterSize(1000);
+        try {
+            // Seeded from the collection
+            assertEquals(fooInstance, jobInstanceDao.getJobInstance(fooJob, fooParams));
+
+            long negatives = dao.getFilterNegativeCount();
+            for (long i = 0; i < 100; i++) {
+                assertNull(jobInstanceDao.getJobInstance(fooJob, new JobParametersBuilder().addLong("run", i).toJobParameters()));
+            }
+            assertTrue(dao.getFilterNegativeCount() - negatives > 90);
+
+            // Fed by new instances
+            JobParameters newParams = new JobParametersBuilder().addLong("run", 1000L).toJobParameters();
+            JobInstance newInstance = jobInstanceDao.createJobInstance(fooJob, newParams);
+            assertEquals(newInstance, jobInstanceDao.getJobInstance(fooJob, newParams));
+        } finally {
+            dao.setJobKeyFilterSize(0);
+        }
+    }
+
+    /**
+     * Seeding the filter of a job does not hold up other jobs, nor instances
+     * of the same job created meanwhile
+     */
+    @Test
+    public void testJobKeyFilterSeedsWithoutLock() throws Exception {
+        final JobInstance fooInstance = jobInstanceDao.createJobInstance(fooJob, fooParams);
+        final CountDownLatch seeding = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final MongoJobInstanceDao dao = new MongoJobInstanceDao() {
+            @Override
+            protected DBCollection getCollection() {
+                if ("seeder".equals(Thread.currentThread().getName()) && seeding.getCount() > 0) {
+                    seeding.countDown();
+                    try {
+                        release.await(10, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return super.getCollection();
+            }
+        };
+        dao.setMongoTemplate(mongoTemplate);
+        dao.setJobKeyFilterSize(1000);
+        final List<JobInstance> found = new ArrayList<JobInstance>();
+        Thread seeder = new Thread("seeder") {
+            public void run() {
+                found.add(dao.getJobInstance(fooJob, fooParams));
+            }
+        };
+        seeder.start();
+        assertTrue(seeding.await(10, TimeUnit.SECONDS));
+
+        assertNull(dao.getJobInstance("otherJob", fooParams));
+        JobParameters newParams = new JobParametersBuilder().addLong("run", 1L).toJobParameters();
+        JobInstance newInstance = dao.createJobInstance(fooJob, newParams);
+        assertEquals(newInstance, dao.getJobInstance(fooJob, newParams));
+        assertTrue(seeder.isAlive());
+
+        release.countDown();
+        seeder.join();
+        assertEquals(Arrays.asList(fooInstance), found);
+        assertEquals(newInstance, dao.getJobInstance(fooJob, newParams));
+    }
+
     @Test
     public void testCreationAddsVersion() {
 
@@ -270,6 +598,30 @@ public class MongoJobInstanceDaoTests {
 
     }*/
 
+    /**
+     * The persisted job key is the MD5 hex of the sorted "key=value;" pairs
+     */
+    @Test
+    public void testJobKeyFormat() throws Exception {
+        StringBuilder longValue = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            longValue.append("\u00e9\u20ac\ud83d\ude00x");
+        }
+        JobParameters jobParameters = new JobParametersBuilder().addString("zKey", longValue.toString())
+                .addString("aKey", "unpaired \ud800 surrogate").addLong("longKey", 42L)
+                .addDate("dateKey", new Date(DATE)).addDouble("doubleKey", 1.5).toJobParameters();
+        JobInstance jobInstance = jobInstanceDao.createJobInstance(fooJob, jobParameters);
+
+        String expected = "aKey=unpaired \ud800 surrogate;dateKey=" + DATE + ";doubleKey=1.5;longKey=42;zKey=" + longValue + ";";
+        byte[] bytes = MessageDigest.getInstance("MD5").digest(expected.getBytes("UTF-8"));
+        String expectedKey = String.format("%032x", new BigInteger(1, bytes));
+
+        DBObject dbObject = mongoTemplate.getCollection(JobInstance.class.getSimpleName()).findOne(
+                new BasicDBObject(MongoJobInstanceDao.JOB_INSTANCE_ID_KEY, jobInstance.getId()));
+        assertEquals(expectedKey, dbObject.get(MongoJobInstanceDao.JOB_KEY_KEY));
+        assertEquals(jobInstance, jobInstanceDao.getJobInstance(fooJob, jobParameters));
+    }
+
     @Test
     public void testHexing() throws Exception {
         MessageDigest digest = MessageDigest.getInstance("MD5");
@@ -23,6 +23,10 @@ import org.junit.runner.RunWith;
 import org.springframework.batch.core.*;
 import org.springframework.batch.core.repository.JobRepository;
 import org.springframework.batch.core.repository.dao.StepExecutionDao;
+import org.springframework.batch.mongodb.AbstractMongoDao;
+import org.springframework.batch.mongodb.MongoJobRepository;
+import org.springframework.batch.mongodb.MongoSequenceIdGenerator;
+import org.springframework.batch.mongodb.MongoStepExecutionDao;
 import org.springframework.batch.mongodb.test.support.StepSupport;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.dao.OptimisticLockingFailureException;
@@ -30,8 +34,21 @@ import org.springframework.data.mongodb.core.MongoTemplate;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.*;
 
@@ -194,6 +211,253 @@ public class MongoStepExecutionDaoTests {
 
     }
 
+    /**
+     * Partitions commit in parallel without blocking each other or losing
+     * updates.
+     */
+    @Test
+    public void testConcurrentUpdatesOfPartitions() throws Exception {
+        // Within the driver's limit of 50 threads waiting for a connection
+        List<StepExecution> partitions = savePartitions(32);
+        updateInParallel(stepExecutionDao, partitions);
+        for (StepExecution partition : partitions) {
+            StepExecution retrieved = stepExecutionDao.getStepExecution(jobExecution, partition.getId());
+            assertEquals(Integer.valueOf(10), retrieved.getVersion());
+            assertEquals(100, retrieved.getReadCount());
+            assertEquals(10, retrieved.getCommitCount());
+        }
+    }
+
+    /**
+     * Updates of different step executions do not queue behind each other in
+     * the DAO: every partition thread reaches the collection at the same time.
+     * A DAO-wide lock would let only one in, the others would wait for the
+     * latch to time out.
+     */
+    @Test
+    public void testUpdatesOfPartitionsRunConcurrently() throws Exception {
+        final int partitionCount = 8;
+        final CountDownLatch allInside = new CountDownLatch(partitionCount);
+        final AtomicInteger inside = new AtomicInteger();
+        final AtomicInteger maxInside = new AtomicInteger();
+        MongoStepExecutionDao dao = new MongoStepExecutionDao() {
+            @Override
+            protected DBCollection getCollection() {
+                int count = inside.incrementAndGet();
+                try {
+                    while (count > maxInside.get()) {
+                        maxInside.compareAndSet(maxInside.get(), count);
+                    }
+                    allInside.countDown();
+                    allInside.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    inside.decrementAndGet();
+                }
+                return super.getCollection();
+            }
+        };
+        dao.setMongoTemplate(mongoTemplate);
+        List<StepExecution> partitions = savePartitions(partitionCount);
+        updateInParallel(dao, partitions);
+        assertEquals(partitionCount, maxInside.get());
+        for (StepExecution partition : partitions) {
+            assertEquals(100, dao.getStepExecution(jobExecution, partition.getId()).getReadCount());
+        }
+    }
+
+    private List<StepExecution> savePartitions(int count) {
+        List<StepExecution> partitions = new ArrayList<StepExecution>();
+        for (int i = 0; i < count; i++) {
+            StepExecution partition = new StepExecution("foo:partition" + i, jobExecution);
+            stepExecutionDao.saveStepExecution(partition);
+            partitions.add(partition);
+        }
+        return partitions;
+    }
+
+    /**
+     * Commits 10 chunks of each partition, one thread per partition.
+     */
+    private void updateInParallel(final StepExecutionDao dao, List<StepExecution> partitions) throws Exception {
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        Thread[] threads = new Thread[partitions.size()];
+        for (int t = 0; t < threads.length; t++) {
+            final StepExecution partition = partitions.get(t);
+            threads[t] = new Thread() {
+                public void run() {
+                    try {
+                        for (int i = 0; i < 10; i++) {
+                            partition.setReadCount(partition.getReadCount() + 10);
+                            partition.setCommitCount(partition.getCommitCount() + 1);
+                            dao.updateStepExecution(partition);
+                        }
+                    } catch (Throwable e) {
+                        errors.add(e);
+                    }
+                }
+            };
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(errors.toString(), errors.isEmpty());
+    }
+
+    /**
+     * All partitions are saved with one id reservation and one insert
+     */
+    @Test
+    public void testSaveStepExecutions() {
+        MongoSequenceIdGenerator idGenerator = new MongoSequenceIdGenerator(mongoTemplate);
+        ((AbstractMongoDao) stepExecutionDao).setIdGenerator(idGenerator);
+        try {
+            List<StepExecution> partitions = new ArrayList<StepExecution>();
+            for (int i = 0; i < 2000; i++) {
+                StepExecution partition = new StepExecution("foo:partition" + i, jobExecution);
+                partition.setStartTime(new Date());
+                partitions.add(partition);
+            }
+            stepExecutionDao.saveStepExecutions(partitions);
+
+            assertEquals(1, idGenerator.getRefillCount());
+            Set<Long> ids = new HashSet<Long>();
+            for (StepExecution partition : partitions) {
+                assertEquals(Integer.valueOf(0), partition.getVersion());
+                ids.add(partition.getId());
+            }
+            assertEquals(2000, ids.size());
+            assertEquals(2000, mongoTemplate.getCollection(StepExecution.class.getSimpleName()).count());
+            StepExecution last = partitions.get(1999);
+            StepExecution retrieved = stepExecutionDao.getStepExecution(jobExecution, last.getId());
+            assertStepExecutionsAreEqual(last, retrieved);
+        } finally {
+            ((AbstractMongoDao) stepExecutionDao).setIdGenerator(null);
+        }
+    }
+
+    /**
+     * Nothing is saved if any of the step executions is invalid
+     */
+    @Test
+    public void testSaveStepExecutionsValidatesAllFirst() {
+        StepExecution valid = new StepExecution("valid", jobExecution);
+        valid.setStartTime(new Date());
+        StepExecution invalid = new StepExecution("invalid", jobExecution);
+        invalid.setId(123L);
+        try {
+            stepExecutionDao.saveStepExecutions(Arrays.asList(valid, invalid));
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        assertNull(valid.getId());
+        assertEquals(0, mongoTemplate.getCollection(StepExecution.class.getSimpleName()).count());
+    }
+
+    /**
+     * A chunk commit only sends the fields that changed since the last write,
+     * the first write after a restart or a failed update sends all of them.
+     */
+    @Test
+    public void testUpdateSendsChangedFieldsOnly() {
+        stepExecution.setStartTime(new Date());
+        stepExecutionDao.saveStepExecution(stepExecution);
+        DBCollection collection = mongoTemplate.getCollection(StepExecution.class.getSimpleName());
+        DBObject query = new BasicDBObject(MongoStepExecutionDao.STEP_EXECUTION_ID_KEY, stepExecution.getId());
+        // Changed behind the DAO's back, without a new version
+        collection.update(query, new BasicDBObject("$set",
+                new BasicDBObject(MongoStepExecutionDao.EXIT_MESSAGE_KEY, "untouched")));
+
+        stepExecution.setReadCount(10);
+        stepExecution.setCommitCount(1);
+        stepExecutionDao.updateStepExecution(stepExecution);
+        DBObject stored = collection.findOne(query);
+        assertEquals(10, stored.get(MongoStepExecutionDao.READ_COUNT_KEY));
+        assertEquals(1, stored.get(MongoStepExecutionDao.VERSION_KEY));
+        assertEquals("untouched", stored.get(MongoStepExecutionDao.EXIT_MESSAGE_KEY));
+
+        // Without a snapshot every field is written
+        MongoStepExecutionDao otherDao = new MongoStepExecutionDao();
+        otherDao.setMongoTemplate(mongoTemplate);
+        stepExecution.setReadCount(20);
+        otherDao.updateStepExecution(stepExecution);
+        stored = collection.findOne(query);
+        assertEquals(20, stored.get(MongoStepExecutionDao.READ_COUNT_KEY));
+        assertEquals("", stored.get(MongoStepExecutionDao.EXIT_MESSAGE_KEY));
+
+        // The first DAO's snapshot is for an older version and is not used
+        stepExecution.setReadCount(30);
+        stepExecutionDao.updateStepExecution(stepExecution);
+        assertEquals(Integer.valueOf(3), stepExecutionDao.getStepExecution(jobExecution,
+                stepExecution.getId()).getVersion());
+        assertEquals(30, stepExecutionDao.getStepExecution(jobExecution, stepExecution.getId()).getReadCount());
+    }
+
+    /**
+     * Progress is coalesced in memory, status changes, flush and step end are
+     * written at once.
+     */
+    @Test
+    public void testWriteBehind() {
+        MongoStepExecutionDao dao = new MongoStepExecutionDao();
+        dao.setMongoTemplate(mongoTemplate);
+        dao.setWriteBehindWindow(60 * 60 * 1000L);
+        stepExecution.setStartTime(new Date());
+        dao.saveStepExecution(stepExecution);
+
+        for (int i = 1; i <= 10; i++) {
+            stepExecution.setReadCount(i);
+            dao.updateStepExecution(stepExecution);
+        }
+        assertEquals(Integer.valueOf(10), stepExecution.getVersion());
+        StepExecution stored = dao.getStepExecution(jobExecution, stepExecution.getId());
+        assertEquals(Integer.valueOf(0), stored.getVersion());
+        assertEquals(0, stored.getReadCount());
+
+        stepExecution.setStatus(BatchStatus.STOPPING);
+        dao.updateStepExecution(stepExecution);
+        stored = dao.getStepExecution(jobExecution, stepExecution.getId());
+        assertEquals(Integer.valueOf(11), stored.getVersion());
+        assertEquals(10, stored.getReadCount());
+        assertEquals(BatchStatus.STOPPING, stored.getStatus());
+
+        stepExecution.setReadCount(20);
+        dao.updateStepExecution(stepExecution);
+        dao.flush();
+        stored = dao.getStepExecution(jobExecution, stepExecution.getId());
+        assertEquals(Integer.valueOf(13), stored.getVersion());
+        assertEquals(20, stored.getReadCount());
+
+        stepExecution.setReadCount(30);
+        dao.updateStepExecution(stepExecution);
+        stepExecution.setReadCount(40);
+        stepExecution.setEndTime(new Date());
+        dao.updateStepExecution(stepExecution);
+        stored = dao.getStepExecution(jobExecution, stepExecution.getId());
+        assertEquals(stepExecution.getVersion(), stored.getVersion());
+        assertEquals(40, stored.getReadCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUpdateWithoutIdWriteBehind() {
+        MongoStepExecutionDao dao = new MongoStepExecutionDao();
+        dao.setMongoTemplate(mongoTemplate);
+        dao.setWriteBehindWindow(60 * 60 * 1000L);
+        dao.updateStepExecution(stepExecution);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUpdateUnsavedExecution() {
+        stepExecution.setId(4711L);
+        stepExecution.incrementVersion();
+        stepExecutionDao.updateStepExecution(stepExecution);
+    }
+
     @Test
     public void testGetStepExecutionsWhenNoneExist() throws Exception {
         int count = jobExecution.getStepExecutions().size();
@@ -201,6 +465,48 @@ public class MongoStepExecutionDaoTests {
         assertEquals("Incorrect size of collection", count, jobExecution.getStepExecutions().size());
     }
 
+    /**
+     * The restart queries of the repository are answered by the DAO, across
+     * all executions of the instance
+     */
+    @Test
+    public void testLastStepExecutionAndCountOverRestarts() throws Exception {
+        assertTrue(jobRepository instanceof MongoJobRepository);
+        assertNull(jobRepository.getLastStepExecution(jobInstance, "foo"));
+        assertEquals(0, jobRepository.getStepExecutionCount(jobInstance, "foo"));
+
+        long start = System.currentTimeMillis() - 100000;
+        StepExecution latest = null;
+        for (int i = 0; i < 5; i++) {
+            JobExecution restart = i == 0 ? jobExecution
+                    : jobRepository.createJobExecution(jobInstance, new JobParameters(), null);
+            restart.getExecutionContext().putInt("restart", i);
+            jobRepository.updateExecutionContext(restart);
+            StepExecution foo = restart.createStepExecution("foo");
+            // Started out of id order
+            foo.setStartTime(new Date(start + (i == 2 ? 50000 : i * 1000)));
+            foo.getExecutionContext().putInt("restart", i);
+            jobRepository.add(foo);
+            StepExecution bar = restart.createStepExecution("bar");
+            bar.setStartTime(new Date(start + 60000));
+            jobRepository.add(bar);
+            if (i == 2) {
+                latest = foo;
+            }
+        }
+
+        StepExecution last = jobRepository.getLastStepExecution(jobInstance, "foo");
+        assertStepExecutionsAreEqual(latest, last);
+        assertEquals("foo", last.getStepName());
+        assertEquals(2, last.getExecutionContext().getInt("restart"));
+        assertEquals(2, last.getJobExecution().getExecutionContext().getInt("restart"));
+        assertTrue(last.getJobExecution().getStepExecutions().contains(last));
+        assertEquals(5, jobRepository.getStepExecutionCount(jobInstance, "foo"));
+        assertEquals(5, jobRepository.getStepExecutionCount(jobInstance, "bar"));
+        assertEquals(0, jobRepository.getStepExecutionCount(jobInstance, "baz"));
+        assertNull(jobRepository.getLastStepExecution(jobInstance, "baz"));
+    }
+
     private void assertStepExecutionsAreEqual(StepExecution expected, StepExecution actual) {
         assertEquals(expected.getId(), actual.getId());
         assertEquals(expected.getStartTime(), actual.getStartTime());